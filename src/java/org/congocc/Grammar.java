@@ -36,10 +36,14 @@ import java.util.regex.*;
 
 import org.congocc.core.BNFProduction;
 import org.congocc.core.Expansion;
+import org.congocc.core.GrammarAnalysis;
+import org.congocc.core.ProductionGraph;
 import org.congocc.core.LexerData;
 import org.congocc.core.Lookahead;
 import org.congocc.core.RegularExpression;
+import org.congocc.core.LeftFactorer;
 import org.congocc.core.SanityChecker;
+import org.congocc.core.TokenSet;
 //import org.congocc.output.Sequencer;
 //import org.congocc.output.java.FilesGenerator;
 //import org.congocc.output.java.CodeInjector;
@@ -65,6 +69,17 @@ public class Grammar extends BaseNode {
     private Map<String, Object> settings = new HashMap<>();
     private CompilationUnit parserCode;
     private LexerData lexerData = new LexerData(this);
+    private GrammarAnalysis analysis;
+    private ProductionGraph productionGraph;
+    // The name of the variable for each distinct token set in the generated
+    // parser, so that there is one constant per set, not one per expansion.
+    private final Map<TokenSet, String> tokenSetVarNames = new HashMap<>();
+    // The ones that the generated code has actually asked for
+    private final Set<String> referencedTokenSetVarNames = new HashSet<>();
+    // The expansions for the first, final and follow set variables,
+    // worked out together once per analysis, so that the names do not
+    // depend on which of the lists is asked for first.
+    private List<List<Expansion>> expansionsForSets;
     private int includeNesting;
 
     private List<TokenProduction> tokenProductions = new ArrayList<>();
@@ -329,8 +344,107 @@ public class Grammar extends BaseNode {
         if (getErrorCount() > 0) {
             return;
         }
+        if (getOptimizeTokenOrdinals()) {
+            // The sanity checks can involve an analysis of the grammar 
+            // from before the string literals all had their ordinals.
+            invalidateAnalysis();
+            int[] newOrdinals = lexerData.optimizeTokenOrdinals();
+            if (newOrdinals != null) {
+                Map<Integer, String> renumbered = new HashMap<>();
+                for (Map.Entry<Integer, String> entry : tokenNames.entrySet()) {
+                    int index = entry.getKey();
+                    renumbered.put(index < newOrdinals.length ? newOrdinals[index] : index, entry.getValue());
+                }
+                tokenNames = renumbered;
+            }
+            invalidateAnalysis();
+        }
         lexerData.ensureStringLabels();
         resolveStringLiterals();
+        checkTokenActivations();
+        // The token ordinals are only all assigned now, so any analysis
+        // done before this point has to be redone.
+        invalidateAnalysis();
+        if (getLeftFactorChoices()) {
+            new LeftFactorer(this).factorChoices();
+        }
+    }
+
+    /**
+     * @return the analysis of the grammar (nullable, first, final and follow sets)
+     * which is built the first time it is needed.
+     */
+    public GrammarAnalysis getAnalysis() {
+        if (analysis == null) {
+            analysis = new GrammarAnalysis(this);
+        }
+        return analysis;
+    }
+
+    /**
+     * @return the graph of which productions refer to which,
+     * which is built the first time it is needed.
+     */
+    public ProductionGraph getProductionGraph() {
+        if (productionGraph == null) {
+            productionGraph = new ProductionGraph(this);
+        }
+        return productionGraph;
+    }
+
+    /**
+     * Discard the current analysis of the grammar, and the production graph.
+     * This must be called after any change to the structure of the grammar 
+     * or to the token ordinals.
+     */
+    public void invalidateAnalysis() {
+        analysis = null;
+        productionGraph = null;
+        tokenSetVarNames.clear();
+        referencedTokenSetVarNames.clear();
+        expansionsForSets = null;
+    }
+
+    /**
+     * @return the name of the variable for this token set in the generated parser.
+     * All the expansions with the same (first, final or follow) set share one 
+     * variable, which is named after the first expansion that asks for it.
+     */
+    public String getTokenSetVarName(TokenSet set, String basePrefix, Node exp) {
+        String result = tokenSetVarNames.get(set);
+        if (result == null) {
+            result = generateUniqueIdentifier(generateIdentifierPrefix(basePrefix), exp);
+            tokenSetVarNames.put(set, result);
+        }
+        return result;
+    }
+
+    /**
+     * Note that the generated code refers to this token set variable.
+     * This is called by the various get...SetVarName() methods of Expansion,
+     * which are what the templates use.
+     */
+    public void addReferencedTokenSetVarName(String varName) {
+        referencedTokenSetVarNames.add(varName);
+    }
+
+    // This happens after the string literals get their labels,
+    // since those labels can be used to activate/deactivate tokens.
+    // These are only warnings, since grammars with such names have always
+    // been accepted. The names are just ignored in the token sets.
+    private void checkTokenActivations() {
+        for (String name : tokensOffByDefault) {
+            if (lexerData.getTokenOrdinal(name) < 0) {
+                addWarning(null, "The DEACTIVATE_TOKENS setting refers to undefined token type " + name + ". It will be ignored.");
+            }
+        }
+        for (TokenActivation activation : descendants(TokenActivation.class)) {
+            for (String name : activation.getTokenNames()) {
+                if (lexerData.getTokenOrdinal(name) < 0) {
+                    addWarning(activation, "Undefined token type " + name + ". It will be ignored.");
+                }
+            }
+        }
     }
 /* 
     public void generateFiles() throws ParseException, IOException, TemplateException {
@@ -573,6 +687,16 @@ public class Grammar extends BaseNode {
         if (!lexicalStates.contains(name)) lexicalStates.add(name);
     }
 
+    /**
+     * The expansions for which the templates declare the first, final and follow set 
+     * variables, one per variable. Since an expansion's final or follow set variable
+     * can be the same as another's first set variable (when the sets are the same), 
+     * each variable is only in one of the lists: the follow set list leaves out
+     * the variables that are in the first set list, and the final set list leaves out
+     * those that are in either of the other two. So the lists only declare all the 
+     * variables if they are emitted together: the first set list whenever either 
+     * of the others is, and the follow set list whenever the final set list is.
+     */
     public List<Expansion> getExpansionsForFirstSet() {
         return getExpansionsForSet(0);
     }
@@ -585,8 +709,52 @@ public class Grammar extends BaseNode {
         return getExpansionsForSet(2);
     }
 
+    /**
+     * These are like the getExpansionsFor...Set() methods above, except that
+     * they only contain the expansions for the set variables that the generated code
+     * has actually referred to so far. So the templates must call these after
+     * generating all the code that can use the variables. As with the lists above,
+     * they must be emitted together.
+     */
+    public List<Expansion> getReferencedExpansionsForFirstSet() {
+        return getReferencedExpansionsForSet(0);
+    }
+
+    public List<Expansion> getReferencedExpansionsForFinalSet() {
+        return getReferencedExpansionsForSet(1);
+    }
+
+    public List<Expansion> getReferencedExpansionsForFollowSet() {
+        return getReferencedExpansionsForSet(2);
+    }
+
+    private List<Expansion> getReferencedExpansionsForSet(int type) {
+        List<Expansion> result = new ArrayList<>();
+        for (Expansion expansion : getExpansionsForSet(type)) {
+            if (referencedTokenSetVarNames.contains(getSetVarName(expansion, type))) {
+                result.add(expansion);
+            }
+        }
+        return result;
+    }
+
     private List<Expansion> getExpansionsForSet(int type) {
-        HashSet<String> usedNames = new HashSet<>();
+        if (expansionsForSets == null) {
+            // The first, final and follow sets share their variables, so we leave
+            // out any that are already among the first sets or, for the final sets,
+            // among the follow sets. (The final sets are not always generated.)
+            Set<String> usedNames = new HashSet<>();
+            List<Expansion> firstSetExpansions = getExpansionsForSet(0, usedNames);
+            List<Expansion> followSetExpansions = getExpansionsForSet(2, usedNames);
+            List<Expansion> finalSetExpansions = getExpansionsForSet(1, usedNames);
+            expansionsForSets = Arrays.asList(firstSetExpansions, finalSetExpansions, followSetExpansions);
+        }
+        return expansionsForSets.get(type);
+    }
+
+    // The expansions that have a set variable of this type whose name is
+    // not in usedNames yet. Their names are added to usedNames.
+    private List<Expansion> getExpansionsForSet(int type, Set<String> usedNames) {
         List<Expansion> result = new ArrayList<>();
         for (Expansion expansion : descendants(Expansion.class)) {
             if (expansion.getParent() instanceof BNFProduction) continue; // Handle these separately
@@ -620,14 +788,7 @@ public class Grammar extends BaseNode {
                     continue;
                 }
             }
-            String varName = null;
-            if (type==0) {
-                varName = expansion.getFirstSetVarName();
-            } else if (type ==1) {
-                varName = expansion.getFinalSetVarName();
-            } else {
-                varName = expansion.getFollowSetVarName();
-            }
+            String varName = getSetVarName(expansion, type);
             if (!usedNames.contains(varName)) {
                 result.add(expansion);
                 usedNames.add(varName);
@@ -636,6 +797,18 @@ public class Grammar extends BaseNode {
         return result;
     }
 
+    // Unlike the methods of Expansion, this does not count as a reference
+    // to the variable. (The top-level expansions of productions, which
+    // have their own names, are never in these lists.)
+    private String getSetVarName(Expansion expansion, int type) {
+        if (type == 0) {
+            return getTokenSetVarName(expansion.getFirstSet(), "first_set", expansion);
+        } else if (type == 1) {
+            return getTokenSetVarName(expansion.getFinalSet(), "final_set", expansion);
+        }
+        return getTokenSetVarName(expansion.getFollowSet(), "follow_set", expansion);
+    }
+
     /**
      * The list of all TokenProductions from the input file. This list includes
      * implicit TokenProductions that are created for uses of regular
@@ -1058,6 +1231,58 @@ public class Grammar extends BaseNode {
         return b== null ? false : true;
     }
 
+    /**
+     * Whether UNPARSED tokens (typically comments) are only recorded as 
+     * offset ranges, with the Token objects created lazily when they are
+     * navigated to. That is not possible if they are added to the tree as
+     * nodes, or if token actions or lexer token hooks need to see them.
+     */
+    public boolean getLazyUnparsedTokens() {
+        return !getUnparsedTokensAreNodes() 
+               && lexerTokenHooks.isEmpty() 
+               && lexerData.getCanDeferUnparsedTokens();
+    }
+
+    /**
+     * Whether some scan-ahead can go through a switch of lexical state 
+     * or a token (de)activation. If so, a template that caches the tokens 
+     * lexed during scan-ahead has to key them on the lexical state and
+     * the set of active token types as well as the offset. It can then keep 
+     * the tokens lexed under the other configuration when the scan-ahead 
+     * backtracks and reuse them if that configuration comes up again at
+     * the same offset. The generator only works this out for the templates.
+     */
+    public boolean getScanAheadCanSwitchLexicalState() {
+        if (descendants(Expansion.class, Expansion::getRequiresPredicateMethod).isEmpty()) {
+            return false;
+        }
+        return !descendants(LexicalStateSwitch.class).isEmpty()
+               || !descendants(TokenActivation.class).isEmpty()
+               || !descendants(BNFProduction.class, prod -> prod.getLexicalState() != null).isEmpty();
+    }
+
+    /**
+     * Whether the (case-sensitive) string literal token types are renumbered
+     * so that the sets of tokens tested at choice points tend to be 
+     * contiguous ranges of ordinals. 
+     * @see LexerData#optimizeTokenOrdinals()
+     */
+    public boolean getOptimizeTokenOrdinals() {
+        Boolean b = (Boolean) settings.get("OPTIMIZE_TOKEN_ORDINALS");
+        return b == null ? false : b;
+    }
+
+    /**
+     * Whether adjacent alternatives of a choice that start with the same
+     * tokens and NonTerminals are rewritten so that the common prefix is
+     * only parsed once.
+     * @see LeftFactorer
+     */
+    public boolean getLeftFactorChoices() {
+        Boolean b = (Boolean) settings.get("LEFT_FACTOR_CHOICES");
+        return b == null ? false : b;
+    }
+
     public boolean getNodeUsesParser() {
         Boolean b = (Boolean) settings.get("NODE_USES_PARSER");
         return b == null ? false : b;
@@ -1083,6 +1308,18 @@ public class Grammar extends BaseNode {
         return b== null ? false : b;
     }
 
+    /**
+     * Whether a lexer template could keep the token types and offsets 
+     * in parallel int arrays and only create Token objects on demand.
+     * This is not possible if there are token actions or lexer token hooks,
+     * since they work on Token objects as the tokens are matched.
+     * This is just information that is available to the templates; 
+     * there is no setting for it.
+     */
+    public boolean getCanUseCompactTokenStore() {
+        return lexerTokenHooks.isEmpty() && !lexerData.getHasTokenActions();
+    }
+
     public boolean getUsePreprocessor() {
         Boolean b = (Boolean) settings.get("USE_PREPROCESSOR");
         return b == null ? false : b;
@@ -1111,6 +1348,38 @@ public class Grammar extends BaseNode {
         return b== null ? false : b;
     }
 
+    /**
+     * @return whether any of the options that transform the input 
+     * before lexing (JAVA_UNICODE_ESCAPE, C_CONTINUATION_LINE, PRESERVE_LINE_ENDINGS=false,
+     * tab expansion, ENSURE_FINAL_EOL) is in effect. These are all applied
+     * by a single streaming normalization stage that keeps a sparse map 
+     * from the normalized offsets back to the original ones.
+     */
+    public boolean getNormalizesInput() {
+        return getEnsureFinalEOL() || !getNormalizationTriggerChars().isEmpty();
+    }
+
+    /**
+     * @return the characters that the normalization stage could need to
+     * rewrite. If a quick scan of the input finds none of these, the
+     * normalization stage is skipped altogether and the input is lexed as is.
+     * (A missing final EOL does not require a copy of the input, so
+     * ENSURE_FINAL_EOL does not contribute anything here.)
+     */
+    public String getNormalizationTriggerChars() {
+        StringBuilder buf = new StringBuilder();
+        if (getJavaUnicodeEscape() || getCppContinuationLine()) {
+            buf.append('\\');
+        }
+        if (!getPreserveLineEndings()) {
+            buf.append('\r');
+        }
+        if (!getPreserveTabs()) {
+            buf.append('\t');
+        }
+        return buf.toString();
+    }
+
     public boolean getUseCheckedException() {
         Boolean b = (Boolean) settings.get("USE_CHECKED_EXCEPTION");
         return b == null ? false : b;
@@ -1133,6 +1402,30 @@ public class Grammar extends BaseNode {
         return tokensOffByDefault;
     }
 
+    /**
+     * @return the token types that are off by default, 
+     * as a set that the generated code can use as a bitmask.
+     */
+    public TokenSet getDeactivatedTokenSet() {
+        return lexerData.getTokenSet(tokensOffByDefault);
+    }
+
+    /**
+     * @return the token types whose activation can change, i.e. the ones
+     * that are off by default or are (de)activated somewhere in the grammar.
+     * Only these need to be checked against the active set when the lexer
+     * accepts a token, and a cached token only needs to be re-tokenized 
+     * when its type is in the set of token types that an activation 
+     * actually changes.
+     */
+    public TokenSet getActivatableTokenSet() {
+        TokenSet result = getDeactivatedTokenSet();
+        for (TokenActivation activation : descendants(TokenActivation.class)) {
+            result.or(activation.getTokenSet());
+        }
+        return result;
+    }
+
     public Map<String, String> getExtraTokens() {
         return extraTokens;
     }
@@ -1201,7 +1494,7 @@ public class Grammar extends BaseNode {
         }
     }
     private int jdkTarget = 8;
-    private String booleanSettings = ",FAULT_TOLERANT,PRESERVE_TABS,PRESERVE_LINE_ENDINGS,JAVA_UNICODE_ESCAPE,IGNORE_CASE,LEXER_USES_PARSER,NODE_DEFAULT_VOID,SMART_NODE_CREATION,NODE_USES_PARSER,TREE_BUILDING_DEFAULT,TREE_BUILDING_ENABLED,TOKENS_ARE_NODES,SPECIAL_TOKENS_ARE_NODES,UNPARSED_TOKENS_ARE_NODES,FREEMARKER_NODES,NODE_FACTORY,TOKEN_MANAGER_USES_PARSER,ENSURE_FINAL_EOL,MINIMAL_TOKEN,C_CONTINUATION_LINE,USE_PREPROCESSOR,USE_CHECKED_EXCEPTION,";
+    private String booleanSettings = ",FAULT_TOLERANT,PRESERVE_TABS,PRESERVE_LINE_ENDINGS,JAVA_UNICODE_ESCAPE,IGNORE_CASE,LEXER_USES_PARSER,NODE_DEFAULT_VOID,SMART_NODE_CREATION,NODE_USES_PARSER,TREE_BUILDING_DEFAULT,TREE_BUILDING_ENABLED,TOKENS_ARE_NODES,SPECIAL_TOKENS_ARE_NODES,UNPARSED_TOKENS_ARE_NODES,FREEMARKER_NODES,NODE_FACTORY,TOKEN_MANAGER_USES_PARSER,ENSURE_FINAL_EOL,MINIMAL_TOKEN,C_CONTINUATION_LINE,USE_PREPROCESSOR,USE_CHECKED_EXCEPTION,OPTIMIZE_TOKEN_ORDINALS,LEFT_FACTOR_CHOICES,";
     private String stringSettings = ",BASE_NAME,PARSER_PACKAGE,PARSER_CLASS,LEXER_CLASS,CONSTANTS_CLASS,BASE_SRC_DIR,BASE_NODE_CLASS,NODE_PREFIX,NODE_CLASS,NODE_PACKAGE,DEFAULT_LEXICAL_STATE,NODE_CLASS,OUTPUT_DIRECTORY,DEACTIVATE_TOKENS,TURN_OFF_TOKENS,EXTRA_TOKENS,";
     private String integerSettings = ",TAB_SIZE,TABS_TO_SPACES,JDK_TARGET,";
 
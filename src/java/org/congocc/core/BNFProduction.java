@@ -31,11 +31,6 @@ public class BNFProduction extends BaseNode {
     private Expansion expansion, recoveryExpansion;
     private String lexicalState, name, leadingComments = "";
     private boolean implicitReturnType;
-    /**
-     * The NonTerminal nodes which refer to this production.
-     */
-    private List<NonTerminal> referringNonTerminals;
-    
     public Expansion getExpansion() {
         return expansion;
     }
@@ -74,11 +69,11 @@ public class BNFProduction extends BaseNode {
         this.implicitReturnType = implicitReturnType;
     }
 
+    /**
+     * @return the NonTerminal nodes which refer to this production.
+     */
     public List<NonTerminal> getReferringNonTerminals() {
-        if (referringNonTerminals == null) {
-           referringNonTerminals = getGrammar().descendants(NonTerminal.class, nt->nt.getName().equals(name));
-        }
-        return referringNonTerminals;
+        return getGrammar().getProductionGraph().getCallers(this);
     }
 
 
@@ -190,26 +185,18 @@ public class BNFProduction extends BaseNode {
 */
     }
 
-    private TokenSet firstSet, finalSet;
-    
     public TokenSet getFirstSet() {
-        if (firstSet == null) {
-           firstSet = getExpansion().getFirstSet();
-        }
-        return firstSet;
+        return getExpansion().getFirstSet();
     }
 
     public TokenSet getFinalSet() {
-          if (finalSet == null) {
-              finalSet = getExpansion().getFinalSet();
-          }
-          return finalSet;
+        return getExpansion().getFinalSet();
     }
 
     /**
      * Does this production potentially have left recursion?
      */
     public boolean isLeftRecursive() {
-        return getExpansion().potentiallyStartsWith(getName(), new HashSet<>());
+        return getGrammar().getProductionGraph().isLeftRecursive(this);
     }
 }
\ No newline at end of file
@@ -35,9 +35,9 @@ abstract public class EmptyExpansion extends Expansion {
         return true;
     }
     
-    public TokenSet getFirstSet() {return new TokenSet(getGrammar());}
+    public TokenSet getFirstSet() {return getAnalysis().getFirstSet(this);}
     
-    public TokenSet getFinalSet() {return new TokenSet(getGrammar());}
+    public TokenSet getFinalSet() {return getAnalysis().getFinalSet(this);}
      
     public int getMinimumSize() {return 0;}
 
@@ -21,9 +21,7 @@
 
  package org.congocc.core;
 
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import org.congocc.Grammar;
 import org.congocc.parser.BaseNode;
@@ -41,8 +39,6 @@ abstract public class Expansion extends BaseNode {
 
     private String label = "";
 
-    protected TokenSet firstSet;
-
     public int getIndex() {
         return parent.indexOf(this);
     }
@@ -58,7 +54,7 @@ abstract public class Expansion extends BaseNode {
         return firstAncestorOfType(BNFProduction.class);
     }
 
-    private String scanRoutineName, firstSetVarName;
+    private String scanRoutineName;
 
     public String getLabel() {
         return label;
@@ -297,6 +293,10 @@ abstract public class Expansion extends BaseNode {
     }
 
     public final boolean getRequiresPredicateMethod() {
+        return getAnalysis().getRequiresPredicateMethod(this);
+    }
+
+    boolean computeRequiresPredicateMethod() {
         if (isInsideLookahead() || !isAtChoicePoint()) {
             return false;
         }
@@ -337,6 +337,10 @@ abstract public class Expansion extends BaseNode {
     }
 
     public boolean getHasGlobalSemanticActions() {
+        return getAnalysis().getHasGlobalSemanticActions(this);
+    }
+
+    boolean computeHasGlobalSemanticActions() {
         List<CodeBlock> blocks = descendants(CodeBlock.class, cb -> cb.isAppliesInLookahead());
         return !blocks.isEmpty();
     }
@@ -378,38 +382,34 @@ abstract public class Expansion extends BaseNode {
         return getLookahead() != null && getLookahead().isNegated();
     }
 
+    /*
+     * The variables for the token sets are shared by all the expansions
+     * with the same set (see Grammar.getTokenSetVarName) except for the 
+     * top-level expansion of a production, which gets its own names.
+     * These are what the templates use, so any name handed out
+     * is recorded as referenced by the generated code.
+     */
     public String getFirstSetVarName() {
-        if (firstSetVarName == null) {
-            if (this.getParent() instanceof BNFProduction) {
-                firstSetVarName = ((BNFProduction) getParent()).getFirstSetVarName();
-            } else {
-                Grammar g = getGrammar();
-                String prefix = g.generateIdentifierPrefix("first_set");
-
-                firstSetVarName = g.generateUniqueIdentifier(prefix, this);
-            }
-        }
-        return firstSetVarName;
+        return referenced(getParent() instanceof BNFProduction
+               ? ((BNFProduction) getParent()).getFirstSetVarName()
+               : getGrammar().getTokenSetVarName(getFirstSet(), "first_set", this));
     }
 
     public String getFinalSetVarName() {
-        String result = getFirstSetVarName();
-        String prefix = getGrammar().generateIdentifierPrefix("first_set");
-
-        if (result.startsWith(prefix)) {
-            return result.replaceFirst("first", "final");
-        }
-        return result.replace("_FIRST_SET", "_FINAL_SET");
+        return referenced(getParent() instanceof BNFProduction
+               ? ((BNFProduction) getParent()).getFirstSetVarName().replace("_FIRST_SET", "_FINAL_SET")
+               : getGrammar().getTokenSetVarName(getFinalSet(), "final_set", this));
     }
 
     public String getFollowSetVarName() {
-        String result = getFirstSetVarName();
-        String prefix = getGrammar().generateIdentifierPrefix("first_set");
+        return referenced(getParent() instanceof BNFProduction
+               ? ((BNFProduction) getParent()).getFirstSetVarName().replace("_FIRST_SET", "_FOLLOW_SET")
+               : getGrammar().getTokenSetVarName(getFollowSet(), "follow_set", this));
+    }
 
-        if (result.startsWith(prefix)) {
-            return result.replaceFirst("first", "follow");
-        }
-        return result.replace("_FIRST_SET", "_FOLLOW_SET");
+    private String referenced(String varName) {
+        getGrammar().addReferencedTokenSetVarName(varName);
+        return varName;
     }
 
     public String getScanRoutineName() {
@@ -478,7 +478,11 @@ abstract public class Expansion extends BaseNode {
      * AND there is no funny business like lexical state switches a FAIL
      * or an up-to-here marker
      */
-    public boolean isSingleToken() {
+    public final boolean isSingleToken() {
+        return getAnalysis().isSingleToken(this);
+    }
+
+    boolean computeSingleToken() {
         if (isPossiblyEmpty() || getMaximumSize() > 1 || getHasScanLimit() || getSpecifiesLexicalStateSwitch())
             return false;
         if (getLookahead() != null)
@@ -496,6 +500,70 @@ abstract public class Expansion extends BaseNode {
         return true;
     }
 
+    /**
+     * @return whether the decision at this choice point -- which alternative
+     * of an ExpansionChoice to take, or whether to enter (or go round again)
+     * a ZeroOrOne, ZeroOrMore or OneOrMore -- can be made on the type of the next
+     * token alone. That is the case if no alternative needs a predicate or 
+     * a semantic lookahead and their first sets do not overlap. Only the last 
+     * alternative can be one that always succeeds, and it is then the default.
+     * The generated code can then dispatch with a switch on the token type,
+     * rather than testing the alternatives one after the other.
+     */
+    public final boolean isLL1Decision() {
+        return getAnalysis().isLL1Decision(this);
+    }
+
+    boolean computeLL1Decision() {
+        if (this instanceof ExpansionChoice) {
+            List<Expansion> choices = ((ExpansionChoice) this).getChoices();
+            TokenSet alreadyCovered = new TokenSet(getGrammar());
+            for (int i = 0; i < choices.size(); i++) {
+                Expansion choice = choices.get(i);
+                if (choice.isAlwaysSuccessful()) {
+                    return i == choices.size() - 1;
+                }
+                if (!choice.isDecidedByNextToken()) {
+                    return false;
+                }
+                TokenSet firstSet = choice.getFirstSet();
+                if (firstSet.intersects(alreadyCovered)) {
+                    return false;
+                }
+                alreadyCovered.or(firstSet);
+            }
+            return true;
+        }
+        if (this instanceof ZeroOrOne || this instanceof ZeroOrMore || this instanceof OneOrMore) {
+            Expansion nested = getNestedExpansion();
+            if (nested instanceof ExpansionChoice) {
+                return nested.isLL1Decision();
+            }
+            return nested != null && !nested.isAlwaysSuccessful() && nested.isDecidedByNextToken();
+        }
+        return false;
+    }
+
+    /**
+     * @return a lookahead automaton that predicts which way this choice point
+     * goes from the types of the next few tokens, if it is one where that 
+     * is otherwise decided by scanahead routines and the analysis can
+     * work out the automaton. Otherwise, null, and it is up to the scanahead
+     * routines, as before.
+     * @see LookaheadPrediction
+     */
+    public final LookaheadPrediction getPrediction() {
+        return getAnalysis().getPrediction(this);
+    }
+
+    private boolean isDecidedByNextToken() {
+        return !getRequiresPredicateMethod() 
+               && !getHasSemanticLookahead()
+               && !getHasLookBehind()
+               && getLookaheadAmount() != 0
+               && !getFirstSet().isEmpty();
+    }
+
     /**
      * @return the minimum number of tokens that this expansion consumes.
      */
@@ -537,50 +605,20 @@ abstract public class Expansion extends BaseNode {
     }
 
     public TokenSet getFollowSet() {
-        TokenSet result = new TokenSet(getGrammar());
-        if (isAtEndOfLoop()) {
-            result.or(firstLoopAncestor().getFirstSet());
-        }
-        Expansion following = this;
-        do {
-            following = following.getFollowingExpansion();
-            if (following == null) {
-                result.setIncomplete(true);
-                break;
-            }
-            result.or(following.getFirstSet());
-        } while (following.isPossiblyEmpty());
-        return result;
+        return getAnalysis().getFollowSet(this);
     }
 
-    private boolean isAtEndOfLoop() {
-        if (this instanceof ZeroOrMore || this instanceof OneOrMore)
-            return true;
-        Node parent = getParent();
-        if (parent instanceof ExpansionSequence) {
-            List<Expansion> siblings = parent.childrenOfType(Expansion.class);
-            int index = siblings.indexOf(this);
-            for (int i = index + 1; i < siblings.size(); i++) {
-                if (!siblings.get(i).isPossiblyEmpty())
-                    return false;
-            }
-        }
-        if (parent instanceof Expansion) {
-            return ((Expansion) parent).isAtEndOfLoop();
-        }
-        return false;
+    /**
+     * @return the set of tokens that can follow this expansion, 
+     * including what can follow its production where it is used.
+     * @see GrammarAnalysis#getFullFollowSet(Expansion)
+     */
+    public TokenSet getFullFollowSet() {
+        return getAnalysis().getFullFollowSet(this);
     }
 
-    private Expansion firstLoopAncestor() {
-        Expansion result = this;
-        while (!(result instanceof ZeroOrMore || result instanceof OneOrMore)) {
-            Node parent = result.getParent();
-            if (parent instanceof Expansion)
-                result = (Expansion) parent;
-            else
-                return null;
-        }
-        return result;
+    protected GrammarAnalysis getAnalysis() {
+        return getGrammar().getAnalysis();
     }
 
     public Boolean isBeforeLexicalStateSwitch() {
@@ -610,18 +648,6 @@ abstract public class Expansion extends BaseNode {
         return preceding != null && preceding.isTolerantParsing() && !(preceding instanceof RegularExpression);
     }
 
-    /**
-     * Whether this expansion can start with a given production
-     * This is the default implementation that always returns false.
-     */
-    public boolean potentiallyStartsWith(String productionName, Set<String> alreadyVisited) {
-        return false;
-    }
-
-    final public boolean potentiallyStartsWith(String productionName) {
-        return potentiallyStartsWith(productionName, new HashSet<>());
-    }
-
     /*
      * This section indicates whether this expansion has a child name associated with it,
      * and whether that relates to a single value or a list of values.
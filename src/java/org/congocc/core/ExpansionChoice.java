@@ -22,7 +22,6 @@
 package org.congocc.core;
 
 import java.util.List;
-import java.util.Set;
 
 public class ExpansionChoice extends Expansion {
     public List<Expansion> getChoices() {
@@ -30,31 +29,15 @@ public class ExpansionChoice extends Expansion {
     }
     
     public TokenSet getFirstSet() {
-         if (firstSet == null) {
-            firstSet = new TokenSet(getGrammar());
-            for (Expansion choice : getChoices()) {
-                firstSet.or(choice.getLookaheadExpansion().getFirstSet());
-            }
-         }
-         return firstSet;
+        return getAnalysis().getFirstSet(this);
     }
     
     public TokenSet getFinalSet() {
-        TokenSet finalSet = new TokenSet(getGrammar());
-        for (Expansion choice : getChoices()) {
-            finalSet.or(choice.getFinalSet());
-        }
-        return finalSet;
+        return getAnalysis().getFinalSet(this);
     }
     
-    
     public boolean isPossiblyEmpty() {
-         for (Expansion e : getChoices()) {
-             if (e.isPossiblyEmpty()) {
-                 return true;
-             }
-         }
-         return false;
+        return getAnalysis().isPossiblyEmpty(this);
     }
  
     public boolean isAlwaysSuccessful() {
@@ -66,22 +49,11 @@ public class ExpansionChoice extends Expansion {
     }
     
     public int getMinimumSize() {
-        int result = Integer.MAX_VALUE;
-        for (Expansion choice : getChoices()) {
-           int choiceMin = choice.getMinimumSize();
-           if (choiceMin ==0) return 0;
-           result = Math.min(result, choiceMin);
-        }
-        return result;
+        return getAnalysis().getMinimumSize(this);
     }
  
     public int getMaximumSize() {
-        int result = 0;
-        for (Expansion exp : getChoices()) {
-            result = Math.max(result, exp.getMaximumSize());
-            if (result == Integer.MAX_VALUE) break;
-        }
-        return result;
+        return getAnalysis().getMaximumSize(this);
     }
     
     public boolean getSpecifiesLexicalStateSwitch() {
@@ -90,11 +62,4 @@ public class ExpansionChoice extends Expansion {
         }
         return false;
     }
-
-    public boolean potentiallyStartsWith(String productionName, Set<String> alreadyVisited) {
-        for (Expansion choice : getChoices()) {
-            if (choice.potentiallyStartsWith(productionName, alreadyVisited)) return true;
-        }
-        return false;
-    }
 }
@@ -76,29 +76,11 @@ public class ExpansionSequence extends Expansion {
     }
 
     public TokenSet getFirstSet() {
-        if (firstSet == null) {
-            firstSet = new TokenSet(getGrammar());
-            for (Expansion child : getUnits()) {
-                firstSet.or(child.getFirstSet());
-                if (!child.isPossiblyEmpty()) {
-                    break;
-                }
-            }
-        }
-        return firstSet;
+        return getAnalysis().getFirstSet(this);
     }
 
     public TokenSet getFinalSet() {
-        TokenSet finalSet = new TokenSet(getGrammar());
-        List<Expansion> children = getUnits();
-        Collections.reverse(children);
-        for (Expansion child : children) {
-            finalSet.or(child.getFinalSet());
-            if (!child.isPossiblyEmpty()) {
-                break;
-            }
-        }
-        return finalSet;
+        return getAnalysis().getFinalSet(this);
     }
 
     public boolean getRequiresScanAhead() {
@@ -139,6 +121,10 @@ public class ExpansionSequence extends Expansion {
     public Lookahead getLookahead() {
         if (lookahead != null)
             return lookahead;
+        return getAnalysis().getLookahead(this);
+    }
+
+    Lookahead computeLookahead() {
         for (Expansion unit : allUnits()) {
             if (unit instanceof NonTerminal) {
                 NonTerminal nt = (NonTerminal) unit;
@@ -161,34 +147,15 @@ public class ExpansionSequence extends Expansion {
     }
 
     public boolean isPossiblyEmpty() {
-        for (Expansion e : getUnits()) {
-            if (!e.isPossiblyEmpty()) {
-                return false;
-            }
-        }
-        return true;
+        return getAnalysis().isPossiblyEmpty(this);
     }
 
     public int getMinimumSize() {
-        int result = 0;
-        for (Expansion unit : getUnits()) {
-            int minUnit = unit.getMinimumSize();
-            if (minUnit == Integer.MAX_VALUE)
-                return Integer.MAX_VALUE;
-            result += minUnit;
-        }
-        return result;
+        return getAnalysis().getMinimumSize(this);
     }
 
     public int getMaximumSize() {
-        int result = 0;
-        for (Expansion exp : getUnits()) {
-            int max = exp.getMaximumSize();
-            if (max == Integer.MAX_VALUE)
-                return Integer.MAX_VALUE;
-            result += max;
-        }
-        return result;
+        return getAnalysis().getMaximumSize(this);
     }
 
     /**
@@ -227,13 +194,4 @@ public class ExpansionSequence extends Expansion {
     public List<Expansion> getUnits() {
         return childrenOfType(Expansion.class);
     }
-
-    public boolean potentiallyStartsWith(String productionName, Set<String> alreadyVisited) {
-        boolean result = false;
-        for (Expansion unit : getUnits()) {
-            if (unit.potentiallyStartsWith(productionName, alreadyVisited)) result = true;
-            if (!unit.isPossiblyEmpty()) break;
-        }
-        return result;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,556 @@
+/* Copyright (c) 2020-2022 Jonathan Revusky, revusky@congocc.org
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.congocc.core;
+
+import java.util.*;
+import java.util.function.Function;
+
+import org.congocc.Grammar;
+import org.congocc.parser.Node;
+import org.congocc.parser.tree.*;
+
+/**
+ * Computes whether each expansion in the grammar can match the empty string
+ * (nullable), its minimum size and its first and final sets, all in one 
+ * worklist-driven fixed point over the whole grammar. Before this, these were 
+ * computed recursively, node by node, which could go around in circles
+ * (or just give up) when a production was re-entered.
+ * The follow sets, which are only needed for some expansions,
+ * are computed on demand from these results and then cached.
+ * This is also where various other attributes of expansions that
+ * are expensive to compute and are queried over and over again
+ * by the templates are memoized.
+ * An instance of this is obtained via {@link Grammar#getAnalysis()} and is
+ * only valid as long as the grammar tree is not restructured.
+ */
+public class GrammarAnalysis {
+
+    private final Grammar grammar;
+
+    private final Map<Expansion, Boolean> nullable = new IdentityHashMap<>();
+    private final Map<Expansion, Integer> minimumSizes = new IdentityHashMap<>();
+    private final Map<Expansion, TokenSet> firstSets = new IdentityHashMap<>();
+    private final Map<Expansion, TokenSet> finalSets = new IdentityHashMap<>();
+    private final Map<Expansion, TokenSet> followSets = new IdentityHashMap<>();
+    private final Map<Expansion, TokenSet> fullFollowSets = new IdentityHashMap<>();
+
+    // For each expansion, the expansions whose values were computed
+    // from its values, and thus have to be recomputed if they change.
+    private final Map<Expansion, Set<Expansion>> dependents = new IdentityHashMap<>();
+
+    private final Deque<Expansion> worklist = new ArrayDeque<>();
+    private final Set<Expansion> onWorklist = Collections.newSetFromMap(new IdentityHashMap<>());
+    // The expansions whose first or final set has changed since the worklist
+    // was last emptied. Their sets are only interned once they have converged.
+    private final Set<Expansion> unsettled = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // The expansion currently being (re)computed, so that
+    // we can record what its values depend on.
+    private Expansion current;
+
+    private boolean solving;
+
+    private Map<BNFProduction, TokenSet> productionFollowSets;
+
+    // All the token sets handed out are interned here, so that there is
+    // only one (frozen) instance of each distinct set. Since the 
+    // incomplete flag is not part of equality, those sets are kept apart.
+    private final Map<TokenSet, TokenSet> internedSets = new HashMap<>();
+    private final Map<TokenSet, TokenSet> internedIncompleteSets = new HashMap<>();
+    private final TokenSet emptySet;
+
+    private final Map<Expansion, Integer> maximumSizes = new IdentityHashMap<>();
+
+    private final Map<ExpansionSequence, Lookahead> lookaheads = new IdentityHashMap<>();
+    private final Map<Expansion, Boolean> globalSemanticActions = new IdentityHashMap<>();
+    private final Map<Expansion, Boolean> singleTokens = new IdentityHashMap<>();
+    private final Map<Expansion, Boolean> requiresPredicateMethod = new IdentityHashMap<>();
+    private final Map<Expansion, Boolean> ll1Decisions = new IdentityHashMap<>();
+    private final Map<Expansion, LookaheadPrediction> predictions = new IdentityHashMap<>();
+
+    public GrammarAnalysis(Grammar grammar) {
+        this.grammar = grammar;
+        this.emptySet = intern(new TokenSet(grammar));
+        for (BNFProduction production : grammar.descendants(BNFProduction.class)) {
+            addExpansions(production);
+        }
+    }
+
+    public boolean isPossiblyEmpty(Expansion exp) {
+        ensureIncluded(exp);
+        return nullable.get(exp);
+    }
+
+    public TokenSet getFirstSet(Expansion exp) {
+        ensureIncluded(exp);
+        return firstSets.get(exp);
+    }
+
+    public TokenSet getFinalSet(Expansion exp) {
+        ensureIncluded(exp);
+        return finalSets.get(exp);
+    }
+
+    public int getMinimumSize(Expansion exp) {
+        ensureIncluded(exp);
+        return minimumSizes.get(exp);
+    }
+
+    /**
+     * The maximum size does not fit the fixed point scheme above, since 
+     * it would have to start at zero and could then grow without limit. Instead,
+     * it is computed by a (memoized) depth-first traversal. Any recursion means 
+     * that the maximum size is unbounded, i.e. Integer.MAX_VALUE, so a recursive 
+     * call (as per the {@link ProductionGraph}) is not followed.
+     */
+    public int getMaximumSize(Expansion exp) {
+        return memoize(maximumSizes, exp, this::computeMaximumSize);
+    }
+
+    Lookahead getLookahead(ExpansionSequence sequence) {
+        return memoize(lookaheads, sequence, ExpansionSequence::computeLookahead);
+    }
+
+    boolean getHasGlobalSemanticActions(Expansion exp) {
+        return memoize(globalSemanticActions, exp, Expansion::computeHasGlobalSemanticActions);
+    }
+
+    boolean isSingleToken(Expansion exp) {
+        return memoize(singleTokens, exp, Expansion::computeSingleToken);
+    }
+
+    boolean isLL1Decision(Expansion exp) {
+        return memoize(ll1Decisions, exp, Expansion::computeLL1Decision);
+    }
+
+    LookaheadPrediction getPrediction(Expansion exp) {
+        return memoize(predictions, exp, LookaheadPrediction::build);
+    }
+
+    boolean getRequiresPredicateMethod(Expansion exp) {
+        return memoize(requiresPredicateMethod, exp, Expansion::computeRequiresPredicateMethod);
+    }
+
+    // Note that this can't use Map.computeIfAbsent, since the computation
+    // typically ends up adding other entries to the same map.
+    private static <K, V> V memoize(Map<K, V> cache, K key, Function<K, V> computation) {
+        if (cache.containsKey(key)) {
+            return cache.get(key);
+        }
+        V value = computation.apply(key);
+        cache.put(key, value);
+        return value;
+    }
+
+    /**
+     * @return the set of tokens that can follow this expansion within its
+     * production (or its lookahead expansion). If the end of the
+     * production can be reached without consuming a token, the set is
+     * marked incomplete.
+     */
+    public TokenSet getFollowSet(Expansion exp) {
+        TokenSet result = followSets.get(exp);
+        if (result == null) {
+            result = intern(computeLocalFollowSet(exp));
+            followSets.put(exp, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the set of tokens that can follow this expansion, including
+     * across the end of its production, i.e. what can follow the places
+     * where the production is used. This is only incomplete if
+     * the production can be the last thing matched by the parser, i.e.
+     * it is not used anywhere outside of a lookahead, or is used at the
+     * end of such a production. It is also incomplete for an expansion
+     * inside a lookahead.
+     */
+    public TokenSet getFullFollowSet(Expansion exp) {
+        TokenSet result = fullFollowSets.get(exp);
+        if (result == null) {
+            TokenSet local = getFollowSet(exp);
+            BNFProduction production = exp.getContainingProduction();
+            if (!local.isIncomplete() || production == null || exp.isInsideLookahead()) {
+                result = local;
+            } else {
+                TokenSet productionFollow = getProductionFollowSets().get(production);
+                result = new TokenSet(grammar, productionFollow.isIncomplete());
+                result.or(local);
+                result.or(productionFollow);
+                result = intern(result);
+            }
+            fullFollowSets.put(exp, result);
+        }
+        return result;
+    }
+
+    private void ensureIncluded(Expansion exp) {
+        if (!nullable.containsKey(exp)) {
+            // An expansion that is not (or was not, when this analysis was
+            // built) within a production. We just add it.
+            addExpansions(exp);
+        }
+        if (!worklist.isEmpty()) {
+            if (solving) {
+                // The values are not final yet, so we can't hand them out.
+                throw new IllegalStateException("Grammar analysis re-entered while being computed.");
+            }
+            solving = true;
+            try {
+                solve();
+            } finally {
+                solving = false;
+            }
+        }
+    }
+
+    private void addExpansions(Node node) {
+        if (node instanceof Expansion) {
+            Expansion exp = (Expansion) node;
+            if (nullable.containsKey(exp)) return;
+            nullable.put(exp, false);
+            minimumSizes.put(exp, Integer.MAX_VALUE);
+            firstSets.put(exp, emptySet);
+            finalSets.put(exp, emptySet);
+            // Regular expressions are leaves as far as we're concerned.
+            if (exp instanceof RegularExpression) {
+                addToWorklist(exp);
+                return;
+            }
+        }
+        for (Node child : node.children()) {
+            addExpansions(child);
+        }
+        // Children are added before their parents, so that
+        // the first pass over the worklist is mostly bottom-up.
+        if (node instanceof Expansion) {
+            addToWorklist((Expansion) node);
+        }
+    }
+
+    private void addToWorklist(Expansion exp) {
+        if (onWorklist.add(exp)) {
+            worklist.add(exp);
+        }
+    }
+
+    private void solve() {
+        while (!worklist.isEmpty()) {
+            Expansion exp = worklist.remove();
+            onWorklist.remove(exp);
+            current = exp;
+            boolean changed = recompute(exp);
+            current = null;
+            if (changed) {
+                for (Expansion dependent : dependents.getOrDefault(exp, Collections.emptySet())) {
+                    addToWorklist(dependent);
+                }
+            }
+        }
+        // Only the final values are interned, not the intermediate ones.
+        for (Expansion exp : unsettled) {
+            firstSets.put(exp, intern(firstSets.get(exp)));
+            finalSets.put(exp, intern(finalSets.get(exp)));
+        }
+        unsettled.clear();
+    }
+
+    // The accessors below are used to read the (current) values of other
+    // expansions while recomputing an expansion. Each read records the dependency.
+
+    private boolean nullable(Expansion exp) {
+        dependOn(exp);
+        return nullable.get(exp);
+    }
+
+    private TokenSet first(Expansion exp) {
+        dependOn(exp);
+        return firstSets.get(exp);
+    }
+
+    private TokenSet last(Expansion exp) {
+        dependOn(exp);
+        return finalSets.get(exp);
+    }
+
+    private int min(Expansion exp) {
+        dependOn(exp);
+        return minimumSizes.get(exp);
+    }
+
+    private void dependOn(Expansion exp) {
+        if (!nullable.containsKey(exp)) {
+            addExpansions(exp);
+        }
+        dependents.computeIfAbsent(exp, e -> Collections.newSetFromMap(new IdentityHashMap<>())).add(current);
+    }
+
+    /**
+     * Recompute the values for this expansion from the current
+     * values of the expansions it is made up of. The rules here
+     * mirror the isPossiblyEmpty/getMinimumSize/getFirstSet/getFinalSet
+     * implementations of the various expansion types.
+     * @return whether anything changed
+     */
+    private boolean recompute(Expansion exp) {
+        boolean isNullable = false;
+        int minSize = Integer.MAX_VALUE;
+        TokenSet first = new TokenSet(grammar), last = new TokenSet(grammar);
+        if (exp instanceof RegularExpression) {
+            int ordinal = ((RegularExpression) exp).getOrdinal();
+            if (ordinal >= 0 && ordinal != Integer.MAX_VALUE) {
+                first.set(ordinal);
+                last.set(ordinal);
+            }
+            minSize = 1;
+        } else if (exp instanceof EmptyExpansion) {
+            isNullable = true;
+            minSize = 0;
+        } else if (exp instanceof ExpansionSequence) {
+            List<Expansion> units = ((ExpansionSequence) exp).getUnits();
+            isNullable = true;
+            for (Expansion unit : units) {
+                first.or(first(unit));
+                if (!nullable(unit)) {
+                    isNullable = false;
+                    break;
+                }
+            }
+            minSize = 0;
+            for (Expansion unit : units) {
+                minSize = addSizes(minSize, min(unit));
+            }
+            for (int i = units.size() - 1; i >= 0; i--) {
+                Expansion unit = units.get(i);
+                last.or(last(unit));
+                if (!nullable(unit)) break;
+            }
+        } else if (exp instanceof ExpansionChoice) {
+            for (Expansion choice : ((ExpansionChoice) exp).getChoices()) {
+                if (nullable(choice)) isNullable = true;
+                first.or(first(choice.getLookaheadExpansion()));
+                last.or(last(choice));
+                minSize = Math.min(minSize, min(choice));
+            }
+        } else if (exp instanceof NonTerminal) {
+            BNFProduction production = ((NonTerminal) exp).getProduction();
+            // An undefined non-terminal (which is an error anyway) is just
+            // treated as matching nothing.
+            if (production != null && production.getExpansion() != null) {
+                Expansion nested = production.getExpansion();
+                isNullable = nullable(nested);
+                minSize = min(nested);
+                first.or(first(nested));
+                last.or(last(nested));
+            }
+        } else {
+            // ExpansionWithParentheses and its subclasses, AttemptBlock, TryBlock
+            Expansion nested = exp.getNestedExpansion();
+            if (nested == null) {
+                nested = exp.firstChildOfType(Expansion.class);
+            }
+            if (nested != null) {
+                isNullable = nullable(nested);
+                minSize = min(nested);
+                first.or(first(nested));
+                last.or(last(nested));
+            }
+            if (exp instanceof ZeroOrOne || exp instanceof ZeroOrMore) {
+                isNullable = true;
+                minSize = 0;
+            } else if (exp instanceof OneOrMore) {
+                isNullable = false;
+            }
+        }
+        boolean changed = isNullable != nullable.get(exp);
+        if (changed) nullable.put(exp, isNullable);
+        // The minimum size only ever decreases...
+        if (minSize < minimumSizes.get(exp)) {
+            minimumSizes.put(exp, minSize);
+            changed = true;
+        }
+        // ...and the sets only ever grow, so we only need 
+        // to check whether there is anything new.
+        TokenSet oldFirst = firstSets.get(exp);
+        first.or(oldFirst);
+        if (!first.equals(oldFirst)) {
+            firstSets.put(exp, first);
+            unsettled.add(exp);
+            changed = true;
+        }
+        TokenSet oldLast = finalSets.get(exp);
+        last.or(oldLast);
+        if (!last.equals(oldLast)) {
+            finalSets.put(exp, last);
+            unsettled.add(exp);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * @return the one frozen instance of a set with these tokens 
+     * (and the same incomplete flag)
+     */
+    public TokenSet intern(TokenSet set) {
+        return set.intern(set.isIncomplete() ? internedIncompleteSets : internedSets);
+    }
+
+    private int computeMaximumSize(Expansion exp) {
+        if (exp instanceof RegularExpression) {
+            return 1;
+        }
+        if (exp instanceof EmptyExpansion) {
+            return 0;
+        }
+        if (exp instanceof ZeroOrMore || exp instanceof OneOrMore) {
+            return Integer.MAX_VALUE;
+        }
+        int result = 0;
+        if (exp instanceof ExpansionSequence) {
+            for (Expansion unit : ((ExpansionSequence) exp).getUnits()) {
+                result = addSizes(result, getMaximumSize(unit));
+            }
+        } else if (exp instanceof ExpansionChoice) {
+            for (Expansion choice : ((ExpansionChoice) exp).getChoices()) {
+                result = Math.max(result, getMaximumSize(choice));
+            }
+        } else if (exp instanceof NonTerminal) {
+            NonTerminal nt = (NonTerminal) exp;
+            BNFProduction production = nt.getProduction();
+            if (grammar.getProductionGraph().isRecursiveCall(nt)) {
+                result = Integer.MAX_VALUE;
+            } else if (production != null && production.getExpansion() != null) {
+                result = getMaximumSize(production.getExpansion());
+            }
+        } else {
+            Expansion nested = exp.getNestedExpansion();
+            if (nested == null) {
+                nested = exp.firstChildOfType(Expansion.class);
+            }
+            if (nested != null) {
+                result = getMaximumSize(nested);
+            }
+        }
+        return result;
+    }
+
+    private static int addSizes(int size1, int size2) {
+        if (size1 == Integer.MAX_VALUE || size2 == Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        }
+        return size1 + size2;
+    }
+
+    private TokenSet computeLocalFollowSet(Expansion exp) {
+        TokenSet result = new TokenSet(grammar);
+        Expansion loop = enclosingLoopIfAtEnd(exp);
+        if (loop != null) {
+            result.or(getFirstSet(loop));
+        }
+        Expansion following = exp;
+        do {
+            following = following.getFollowingExpansion();
+            if (following == null) {
+                result.setIncomplete(true);
+                break;
+            }
+            result.or(getFirstSet(following));
+        } while (isPossiblyEmpty(following));
+        return result;
+    }
+
+    // If the expansion can be the last thing matched in an iteration
+    // of a loop, we return the (innermost) loop, otherwise null.
+    private Expansion enclosingLoopIfAtEnd(Expansion exp) {
+        while (true) {
+            if (exp instanceof ZeroOrMore || exp instanceof OneOrMore) {
+                return exp;
+            }
+            Node parent = exp.getParent();
+            if (parent instanceof ExpansionSequence) {
+                List<Expansion> siblings = ((ExpansionSequence) parent).getUnits();
+                for (int i = siblings.indexOf(exp) + 1; i < siblings.size(); i++) {
+                    if (!isPossiblyEmpty(siblings.get(i))) return null;
+                }
+            }
+            if (!(parent instanceof Expansion)) return null;
+            exp = (Expansion) parent;
+        }
+    }
+
+    /**
+     * The follow set of each production, i.e. what can follow
+     * a non-terminal that refers to it (outside of a lookahead).
+     * This is computed, for all the productions at once, as a fixed point.
+     * The set is marked incomplete if the production can be the last
+     * thing matched.
+     */
+    private Map<BNFProduction, TokenSet> getProductionFollowSets() {
+        if (productionFollowSets != null) return productionFollowSets;
+        productionFollowSets = new IdentityHashMap<>();
+        Map<BNFProduction, List<NonTerminal>> referrers = new IdentityHashMap<>();
+        List<BNFProduction> productions = grammar.descendants(BNFProduction.class);
+        for (BNFProduction production : productions) {
+            List<NonTerminal> list = new ArrayList<>();
+            for (NonTerminal nt : grammar.getProductionGraph().getCallers(production)) {
+                if (!nt.isInsideLookahead() && nt.getContainingProduction() != null) {
+                    list.add(nt);
+                }
+            }
+            referrers.put(production, list);
+        }
+        for (BNFProduction production : productions) {
+            // A production that is not used anywhere is (presumably) a
+            // starting point, so anything could come after it.
+            productionFollowSets.put(production, new TokenSet(grammar, referrers.get(production).isEmpty()));
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BNFProduction production : productions) {
+                TokenSet followSet = productionFollowSets.get(production);
+                for (NonTerminal nt : referrers.get(production)) {
+                    TokenSet local = getFollowSet(nt);
+                    TokenSet contribution = (TokenSet) local.clone();
+                    boolean incomplete = false;
+                    if (local.isIncomplete()) {
+                        TokenSet outer = productionFollowSets.get(nt.getContainingProduction());
+                        contribution.or(outer);
+                        incomplete = outer.isIncomplete();
+                    }
+                    contribution.andNot(followSet);
+                    if (!contribution.isEmpty()) {
+                        followSet.or(contribution);
+                        changed = true;
+                    }
+                    if (incomplete && !followSet.isIncomplete()) {
+                        followSet.setIncomplete(true);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return productionFollowSets;
+    }
+}
@@ -0,0 +1,241 @@
+/* Copyright (c) 2020-2022 Jonathan Revusky, revusky@congocc.org
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.congocc.core;
+
+import java.util.*;
+
+import org.congocc.Grammar;
+import org.congocc.parser.Node;
+import org.congocc.parser.tree.*;
+
+/**
+ * Rewrites choices where adjacent alternatives start with the same
+ * tokens and NonTerminals, so that the common prefix is only parsed once,
+ * rather than being scanned again for each alternative that is tried.
+ * For example:
+ * <pre>
+ *   Name "." =&gt;|+1 (Annotation)+ TypeIdentifier
+ *   |
+ *   Name
+ * </pre>
+ * becomes <code>Name [ "." =&gt;|+1 (Annotation)+ TypeIdentifier ]</code> and
+ * <pre>
+ *   "new" PrimitiveType =&gt;|| ArrayDimsAndInits
+ *   |
+ *   "new" [TypeArguments] ObjectType ...
+ * </pre>
+ * becomes <code>"new" ( PrimitiveType =&gt;|| ArrayDimsAndInits | [TypeArguments] ObjectType ... )</code>.
+ * <p>
+ * This is only done where it cannot change which alternative the parser takes:
+ * every alternative in the run except the last is decided by scanning up to
+ * a scan limit that comes after the common prefix, and the last one is decided
+ * by the next token alone, as is the factored alternative that replaces them.
+ * The common prefix only consists of tokens and NonTerminals that cannot match
+ * the empty string and that have no tree-building annotations, child names,
+ * assignments or anything else that could not be shared between the alternatives.
+ * Code actions are never part of the prefix, so they stay where they are.
+ * This is only used if the LEFT_FACTOR_CHOICES setting is on.
+ */
+public class LeftFactorer {
+
+    private final Grammar grammar;
+
+    public LeftFactorer(Grammar grammar) {
+        this.grammar = grammar;
+    }
+
+    /**
+     * Factor all the choices that can be factored. The grammar analysis is
+     * invalidated after each change.
+     * @return how many runs of alternatives were factored
+     */
+    public int factorChoices() {
+        int count = 0;
+        Deque<ExpansionChoice> choices = new ArrayDeque<>(grammar.descendants(ExpansionChoice.class));
+        while (!choices.isEmpty()) {
+            ExpansionChoice choice = choices.pop();
+            if (choice.isInsideLookahead()) continue;
+            List<Expansion> run;
+            while ((run = findRun(choice)) != null) {
+                Expansion residual = factor(choice, run);
+                grammar.invalidateAnalysis();
+                count++;
+                if (residual instanceof ExpansionChoice) {
+                    // The residual alternatives may have longer prefixes in common.
+                    choices.push((ExpansionChoice) residual);
+                }
+                // The choice itself is gone if all of its alternatives were factored.
+                if (choice.getParent().indexOf(choice) < 0) break;
+            }
+        }
+        return count;
+    }
+
+    // The first run of (at least two) adjacent alternatives that can be factored,
+    // or null if there is none.
+    private List<Expansion> findRun(ExpansionChoice choice) {
+        List<Expansion> alternatives = choice.getChoices();
+        for (int i = 0; i < alternatives.size() - 1; i++) {
+            Expansion first = alternatives.get(i);
+            if (!isDecidedByScanLimit(first)) continue;
+            int end = i + 1;
+            while (end < alternatives.size() - 1 && isDecidedByScanLimit(alternatives.get(end))
+                    && commonPrefixLength(first, alternatives.get(end)) > 0) {
+                end++;
+            }
+            Expansion last = alternatives.get(end);
+            if (isDecidedByNextToken(last) && commonPrefixLength(first, last) > 0) {
+                return new ArrayList<>(alternatives.subList(i, end + 1));
+            }
+        }
+        return null;
+    }
+
+    private static boolean isDecidedByScanLimit(Expansion alternative) {
+        return alternative instanceof ExpansionSequence
+               && ((ExpansionSequence) alternative).getHasExplicitScanLimit()
+               && alternative.getLookahead() == null
+               && !alternative.getHasGlobalSemanticActions();
+    }
+
+    private static boolean isDecidedByNextToken(Expansion alternative) {
+        return alternative instanceof ExpansionSequence
+               && !alternative.getRequiresPredicateMethod()
+               && alternative.getLookahead() == null
+               && !alternative.getHasGlobalSemanticActions();
+    }
+
+    private static int commonPrefixLength(Expansion first, Expansion second) {
+        List<Expansion> units = ((ExpansionSequence) first).getUnits();
+        List<Expansion> otherUnits = ((ExpansionSequence) second).getUnits();
+        int length = 0;
+        while (length < units.size() && length < otherUnits.size()
+                && isSameUnit(units.get(length), otherUnits.get(length))) {
+            length++;
+        }
+        return length;
+    }
+
+    private static boolean isSameUnit(Expansion unit, Expansion other) {
+        if (!isShareable(unit) || !isShareable(other)) return false;
+        if (unit.isTolerantParsing() != other.isTolerantParsing()) return false;
+        if (unit instanceof NonTerminal && other instanceof NonTerminal) {
+            NonTerminal nt = (NonTerminal) unit, otherNt = (NonTerminal) other;
+            InvocationArguments args = nt.getArgs(), otherArgs = otherNt.getArgs();
+            if (args == null || otherArgs == null) {
+                return args == otherArgs && nt.getProduction() == otherNt.getProduction();
+            }
+            return nt.getProduction() == otherNt.getProduction() && args.getSource().equals(otherArgs.getSource());
+        }
+        if (unit instanceof RegularExpression && other instanceof RegularExpression) {
+            return ((RegularExpression) unit).getOrdinal() == ((RegularExpression) other).getOrdinal();
+        }
+        return false;
+    }
+
+    private static boolean isShareable(Expansion unit) {
+        if (unit.isScanLimit() || unit.getTreeNodeBehavior() != null || unit.getChildName() != null) {
+            return false;
+        }
+        if (unit.isPossiblyEmpty() || unit.getHasTokenActivation() || unit.getSpecifiesLexicalStateSwitch()) {
+            return false;
+        }
+        if (unit instanceof NonTerminal) {
+            NonTerminal nt = (NonTerminal) unit;
+            return nt.getLHS() == null && nt.getProduction() != null;
+        }
+        if (unit instanceof RegexpStringLiteral || unit instanceof RegexpRef) {
+            RegularExpression re = (RegularExpression) unit;
+            return re.getLHS() == null && re.getCodeSnippet() == null;
+        }
+        return false;
+    }
+
+    // Replace the run of alternatives by a single alternative that consists
+    // of the common prefix followed by what remains of the alternatives.
+    // Returns that residual expansion.
+    private Expansion factor(ExpansionChoice choice, List<Expansion> run) {
+        int prefixLength = Integer.MAX_VALUE;
+        for (Expansion alternative : run.subList(1, run.size())) {
+            prefixLength = Math.min(prefixLength, commonPrefixLength(run.get(0), alternative));
+        }
+        ExpansionSequence first = (ExpansionSequence) run.get(0);
+        ExpansionSequence last = (ExpansionSequence) run.get(run.size() - 1);
+        ExpansionSequence factored = new ExpansionSequence();
+        factored.setGrammar(grammar);
+        factored.copyLocationInfo(first, last);
+        List<Expansion> prefix = new ArrayList<>(first.getUnits().subList(0, prefixLength));
+        for (Expansion alternative : run) {
+            List<Expansion> units = ((ExpansionSequence) alternative).getUnits();
+            for (Expansion unit : units.subList(0, prefixLength)) {
+                alternative.removeChild(unit);
+            }
+            if (units.size() > prefixLength) {
+                alternative.setBeginOffset(units.get(prefixLength).getBeginOffset());
+            }
+        }
+        for (Expansion unit : prefix) {
+            factored.addChild(unit);
+        }
+        // If nothing remains of the last alternative, what remains of the others is optional.
+        boolean optional = !last.hasChildNodes();
+        Expansion lastResidual = optional ? run.get(run.size() - 2) : last;
+        int start = choice.indexOf(first), end = choice.indexOf(last);
+        List<Node> removed = new ArrayList<>();
+        for (int i = start; i <= end; i++) {
+            removed.add(choice.removeChild(start));
+        }
+        choice.addChild(start, factored);
+        Expansion residual;
+        if (first == lastResidual) {
+            residual = first;
+        } else {
+            residual = new ExpansionChoice();
+            residual.setGrammar(grammar);
+            residual.copyLocationInfo(first, lastResidual);
+            for (Node node : removed) {
+                residual.addChild(node);
+                if (node == lastResidual) break;
+            }
+        }
+        ExpansionWithParentheses parentheses = optional ? new ZeroOrOne() : new ExpansionWithParentheses();
+        parentheses.setGrammar(grammar);
+        parentheses.copyLocationInfo(residual);
+        parentheses.addChild(residual);
+        factored.addChild(parentheses);
+        if (choice.getChoices().size() == 1) {
+            // The whole choice has been factored, so the factored alternative takes its place.
+            Node parent = choice.getParent();
+            factored.replace(choice);
+            if (parent instanceof BNFProduction) {
+                BNFProduction production = (BNFProduction) parent;
+                if (production.getExpansion() == choice) {
+                    production.setExpansion(factored);
+                }
+                if (production.getRecoveryExpansion() == choice) {
+                    production.setRecoveryExpansion(factored);
+                }
+            }
+        }
+        return residual;
+    }
+}
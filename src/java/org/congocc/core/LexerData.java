@@ -21,11 +21,13 @@
 
 package org.congocc.core;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.congocc.Grammar;
 import org.congocc.parser.tree.EndOfFile;
 import org.congocc.parser.tree.RegexpChoice;
+import org.congocc.parser.tree.RegexpRef;
 import org.congocc.parser.tree.RegexpStringLiteral;
 import org.congocc.parser.tree.TokenProduction;
 
@@ -95,6 +97,119 @@ public class LexerData {
                regularExpressions.stream().anyMatch(re->re.getNewLexicalState()!=null);
     }
 
+    /**
+     * @return the java.specification.version (for example, "17") of the JDK
+     * that the move predicates of the NFA states were checked against. 
+     * The generated lexer can compare this to the version it runs on, and
+     * fall back to the move ranges if they differ, since the Unicode tables
+     * behind the java.lang.Character predicates can then differ too.
+     * @see NfaState#getMovePredicate()
+     */
+    public String getPredicateJavaVersion() {
+        return NfaBuilder.PREDICATE_JAVA_VERSION;
+    }
+
+    /**
+     * @return whether all the lexical states only distinguish ASCII
+     * characters, so that a lexer running directly over UTF-8 bytes
+     * will tokenize the input in exactly the same way. This is for a
+     * lexer template that works on bytes; the generator does not act on it.
+     */
+    public boolean getCanLexBytes() {
+        for (LexicalStateData lsd : lexicalStates) {
+            if (!lsd.getCanLexBytes()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether any NFA state has case-folded move ranges,
+     * in which case a lexer template that uses them needs the case-fold table.
+     * @see NfaState#getCaseFoldedMoveRanges()
+     */
+    public boolean getHasCaseFoldedStates() {
+        for (LexicalStateData lsd : lexicalStates) {
+            for (NfaState state : lsd.getAllNfaStates()) {
+                if (state.getCaseFoldedMoveRanges() != null) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The table that a generated lexer would use to case-fold characters
+     * before checking the ranges from {@link NfaState#getCaseFoldedMoveRanges()}.
+     * It is a flat list of triples: left, right, delta, meaning that
+     * the characters from left to right (inclusive) fold to the character
+     * plus delta. Characters not covered by any triple fold to themselves.
+     * The triples are in ascending order, so the generated code can
+     * use a binary search, and the ASCII letters come first, so the
+     * usual case is handled by the first triple.
+     */
+    public List<Integer> getCaseFoldTable() {
+        BitSet caseFoldDiffSet = NfaBuilder.caseFoldDiffSet();
+        List<Integer> result = new ArrayList<>();
+        int left = -1, right = -1, delta = 0;
+        for (int ch = caseFoldDiffSet.nextSetBit(0); ch >= 0; ch = caseFoldDiffSet.nextSetBit(ch+1)) {
+            int chDelta = NfaBuilder.caseFold(ch) - ch;
+            if (ch == right + 1 && chDelta == delta) {
+                right = ch;
+                continue;
+            }
+            if (left >= 0) {
+                result.add(left);
+                result.add(right);
+                result.add(delta);
+            }
+            left = right = ch;
+            delta = chDelta;
+        }
+        if (left >= 0) {
+            result.add(left);
+            result.add(right);
+            result.add(delta);
+        }
+        return result;
+    }
+
+    /**
+     * @return the name of the classpath resource (relative to the
+     * lexer class) that holds the lexer tables, if a template emits
+     * them as a resource.
+     */
+    public String getTablesResourceName() {
+        return grammar.getLexerClassName() + ".tables";
+    }
+
+    /**
+     * The contents of the lexer tables resource. This starts with
+     * the number of lexical states followed by an (offset, length) pair 
+     * for each of them, in the order of {@link #getLexicalStates()}. The 
+     * offsets are from the start of the resource and point to the data from 
+     * {@link LexicalStateData#getTableData()}. This would allow a generated
+     * lexer to map the resource once and only decode the tables of 
+     * a lexical state the first time it is entered. The generator itself
+     * does not write this resource out; it is there for the templates.
+     */
+    public byte[] getTablesResource() {
+        List<byte[]> tables = new ArrayList<>();
+        for (LexicalStateData lsd : lexicalStates) {
+            tables.add(lsd.getTableData());
+        }
+        int offset = 4 + 8 * tables.size();
+        ByteBuffer buffer = ByteBuffer.allocate(offset + tables.stream().mapToInt(t->t.length).sum());
+        buffer.putInt(tables.size());
+        for (byte[] table : tables) {
+            buffer.putInt(offset);
+            buffer.putInt(table.length);
+            offset += table.length;
+        }
+        for (byte[] table : tables) {
+            buffer.put(table);
+        }
+        return buffer.array();
+    }
+
     public boolean getHasTokenActions() {
         return regularExpressions.stream().anyMatch(re->re.getCodeSnippet()!=null);
     }
@@ -117,11 +232,129 @@ public class LexerData {
         return lexicalStates;
     }
 
+    /**
+     * @return the ordinal of the token type with this name, 
+     * including the EXTRA_TOKENS, or -1 if there is none.
+     */
+    public int getTokenOrdinal(String name) {
+        for (RegularExpression regexp : regularExpressions) {
+            if (name.equals(regexp.getLabel())) {
+                return regexp.getOrdinal();
+            }
+        }
+        int idx = grammar.getExtraTokenNames().indexOf(name);
+        return idx < 0 ? -1 : regularExpressions.size() + idx;
+    }
+
+    /**
+     * @return the set of token types with these names. 
+     * Any name that is not a token type is just ignored.
+     */
+    public TokenSet getTokenSet(Collection<String> names) {
+        TokenSet result = new TokenSet(grammar);
+        for (String name : names) {
+            int ordinal = getTokenOrdinal(name);
+            if (ordinal >= 0) {
+                result.set(ordinal);
+            }
+        }
+        return result;
+    }
+
     public void addRegularExpression(RegularExpression regexp) {
         regexp.setOrdinal(regularExpressions.size());
         regularExpressions.add(regexp);
     }
     
+    /**
+     * Renumber the token types so that the sets of tokens that the parser tests
+     * most often (the first sets at choice points) are, as far as possible,
+     * contiguous ranges of ordinals. Only case-sensitive string literal tokens
+     * are moved, and only within a run of consecutive such tokens. Two of these
+     * can never match the same input, but any other regular expression could match
+     * the same input as one of them, in which case the lower ordinal wins, so the
+     * order relative to any other regular expression stays the same. In particular,
+     * EOF stays at 0. This has to happen before the labels are filled in 
+     * (since the generated labels use the ordinal) and any analysis done
+     * before this is invalid afterwards.
+     * @return the new ordinal of each token type, indexed by its old one,
+     * or null if nothing was moved
+     */
+    public int[] optimizeTokenOrdinals() {
+        Map<TokenSet, Integer> frequencies = new LinkedHashMap<>();
+        for (Expansion exp : grammar.getChoicePointExpansions()) {
+            TokenSet set = exp.getFirstSet();
+            if (set.cardinality() > 1) {
+                frequencies.merge(set, 1, Integer::sum);
+            }
+        }
+        List<TokenSet> sets = new ArrayList<>(frequencies.keySet());
+        // A stable sort, so sets that are tested equally often stay in the order found
+        sets.sort((set1, set2) -> frequencies.get(set2) - frequencies.get(set1));
+        int size = regularExpressions.size();
+        List<RegularExpression> reordered = new ArrayList<>(size);
+        int start = 0;
+        while (start < size) {
+            int end = start;
+            while (end < size && isMovable(regularExpressions.get(end))) end++;
+            if (end == start) {
+                reordered.add(regularExpressions.get(start++));
+                continue;
+            }
+            // Within the run, the tokens of the most often tested set go first, 
+            // then the (remaining) ones of the next set, and so on.
+            BitSet placed = new BitSet();
+            for (TokenSet set : sets) {
+                for (int i = set.nextSetBit(start); i >= 0 && i < end; i = set.nextSetBit(i+1)) {
+                    if (!placed.get(i)) {
+                        placed.set(i);
+                        reordered.add(regularExpressions.get(i));
+                    }
+                }
+            }
+            for (int i = start; i < end; i++) {
+                if (!placed.get(i)) {
+                    reordered.add(regularExpressions.get(i));
+                }
+            }
+            start = end;
+        }
+        if (reordered.equals(regularExpressions)) {
+            return null;
+        }
+        // The extra tokens come after all of these, so they keep their ordinals.
+        int[] newOrdinals = new int[getTokenCount()];
+        for (int i = 0; i < newOrdinals.length; i++) {
+            newOrdinals[i] = i;
+        }
+        for (int i = 0; i < size; i++) {
+            newOrdinals[reordered.get(i).getOrdinal()] = i;
+        }
+        // The string literals (in BNF productions) that refer to
+        // one of these tokens were given a copy of its ordinal.
+        Set<RegularExpression> tokenTypes = Collections.newSetFromMap(new IdentityHashMap<>());
+        tokenTypes.addAll(regularExpressions);
+        for (RegularExpression regexp : grammar.descendants(RegularExpression.class)) {
+            int ordinal = regexp.getOrdinal();
+            if (!(regexp instanceof RegexpRef) && !tokenTypes.contains(regexp) && ordinal > 0 && ordinal < size) {
+                regexp.setOrdinal(newOrdinals[ordinal]);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            reordered.get(i).setOrdinal(i);
+        }
+        regularExpressions = reordered;
+        return newOrdinals;
+    }
+
+    private static boolean isMovable(RegularExpression regexp) {
+        TokenProduction tp = regexp.getTokenProduction();
+        return regexp instanceof RegexpStringLiteral 
+               && !regexp.getIgnoreCase() 
+               && !regexp.isPrivate()
+               && tp != null && tp.getKind().equals("TOKEN");
+    }
+
     public void ensureStringLabels() {
         for (ListIterator<RegularExpression> it = regularExpressions.listIterator();it.hasNext();) {
             RegularExpression regexp = it.next();
@@ -166,6 +399,68 @@ public class LexerData {
         return null;
     }
 
+    /**
+     * @return the image that every token of the given type has, or null
+     * if that is not fixed. That is the case for a case-sensitive string literal,
+     * unless a token action could change it or a MORE token could have 
+     * been accumulated in front of it. The generated Token class uses these as 
+     * shared constants, so that no image has to be copied out of the input.
+     */
+    public String getFixedImage(int ordinal) {
+        if (ordinal >= regularExpressions.size()) return null;
+        RegularExpression regexp = regularExpressions.get(ordinal);
+        if (!(regexp instanceof RegexpStringLiteral) || regexp.getIgnoreCase() || regexp.getCodeSnippet() != null) {
+            return null;
+        }
+        Set<LexicalStateData> statesAfterMore = getLexicalStatesAfterMore();
+        for (LexicalStateData lsd : lexicalStates) {
+            if (lsd.containsRegularExpression(regexp) && statesAfterMore.contains(lsd)) {
+                return null;
+            }
+        }
+        return regexp.getImage();
+    }
+
+    /**
+     * @return a list (indexed by ordinal) of the fixed token images, 
+     * with null for the token types that don't have one.
+     * @see #getFixedImage(int)
+     */
+    public List<String> getFixedImages() {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < getTokenCount(); i++) {
+            result.add(getFixedImage(i));
+        }
+        return result;
+    }
+
+    /**
+     * The lexical states in which a token can be preceded by 
+     * an accumulated MORE token.
+     */
+    private Set<LexicalStateData> getLexicalStatesAfterMore() {
+        Set<LexicalStateData> result = new HashSet<>();
+        for (RegularExpression re : regularExpressions) {
+            TokenProduction tp = re.getTokenProduction();
+            if (tp != null && tp.getKind().equals("MORE")) {
+                // If the MORE token switches lexical state, what it has accumulated
+                // only precedes the tokens of the new state, not those of its own. 
+                // (As with the "//" and "/*" that start comments.)
+                LexicalStateData newState = re.getNewLexicalState();
+                if (newState != null) {
+                    result.add(newState);
+                    continue;
+                }
+                for (LexicalStateData lsd : lexicalStates) {
+                    if (lsd.containsRegularExpression(re)) {
+                        result.add(lsd);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     public int getTokenCount() {
         return regularExpressions.size() + grammar.getExtraTokenNames().size();
     }
@@ -182,6 +477,47 @@ public class LexerData {
         return getTokensOfKind("UNPARSED");
     }
 
+    /**
+     * @return the SKIP token types that the lexer can simply advance
+     * past without creating anything, i.e. the ones without a token action.
+     */
+    public TokenSet getSilentlySkippedTokens() {
+        return withoutTokenActions(getSkippedTokens());
+    }
+
+    /**
+     * @return whether all UNPARSED token types are free of token actions,
+     * so that the lexer can just record where they are and leave the 
+     * creation of the Token objects until something asks for them.
+     */
+    public boolean getCanDeferUnparsedTokens() {
+        return !hasTokenActions(getUnparsedTokens());
+    }
+
+    /**
+     * @return whether any MORE token type has a token action. If none does, 
+     * the lexer only needs to remember the offset where the accumulated text 
+     * began, and the image is built once, at the final TOKEN, SKIP or UNPARSED match, 
+     * rather than being appended to at each step.
+     */
+    public boolean getHasMoreTokenActions() {
+        return hasTokenActions(getMoreTokens());
+    }
+
+    private boolean hasTokenActions(TokenSet tokens) {
+        return !withoutTokenActions(tokens).equals(tokens);
+    }
+
+    private TokenSet withoutTokenActions(TokenSet tokens) {
+        TokenSet result = new TokenSet(grammar);
+        for (RegularExpression re : regularExpressions) {
+            if (tokens.get(re.getOrdinal()) && re.getCodeSnippet() == null) {
+                result.set(re.getOrdinal());
+            }
+        }
+        return result;
+    }
+
     public TokenSet getRegularTokens() {
         TokenSet result = getTokensOfKind("TOKEN");
         for (RegularExpression re : regularExpressions) {
@@ -192,6 +528,33 @@ public class LexerData {
         return result;
     }
 
+    /**
+     * @return the token types that switch the lexer into another lexical state
+     */
+    public TokenSet getLexicalStateSwitchTokens() {
+        TokenSet result = new TokenSet(grammar);
+        for (RegularExpression re : regularExpressions) {
+            if (re.getNewLexicalState() != null) {
+                result.set(re.getOrdinal());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the token types after which the lexer can be restarted,
+     * given just the lexical state and the set of active token types. 
+     * This is everything except MORE tokens, since the text they match 
+     * is still pending. This is for a lexer template that re-lexes
+     * only part of the input after an edit and needs to know where it 
+     * can restart. Nothing in the generator itself uses it.
+     */
+    public TokenSet getCheckpointTokens() {
+        TokenSet result = getMoreTokens();
+        result.not();
+        return result;
+    }
+
     private TokenSet getTokensOfKind(String kind) {
         TokenSet result = new TokenSet(grammar);
         for (RegularExpression re : regularExpressions) {
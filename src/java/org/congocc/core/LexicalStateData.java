@@ -21,6 +21,9 @@
 
 package org.congocc.core;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
 
 import org.congocc.Grammar;
@@ -65,8 +68,122 @@ public class LexicalStateData {
    
     public NfaState getInitialState() {return initialState;}
 
+    /**
+     * @return whether the NFA for this lexical state can be run
+     * over UTF-8 bytes rather than code points.
+     */
+    public boolean getCanLexBytes() {
+        for (NfaState state : allStates) {
+            if (!state.isUniformOnNonAscii()) return false;
+        }
+        return true;
+    }
+
     public String getName() {return name;}
 
+    /**
+     * @return the (ASCII) characters that, in this lexical state, can only
+     * occur as the first character of a token. If the lexer is in this lexical
+     * state at such a character, a new token necessarily starts there, so 
+     * the input can be split there and the pieces lexed independently. 
+     * A lexer template that lexes the pieces in parallel can use these 
+     * as candidate split points, as long as it verifies afterwards that 
+     * the lexical state at the split was really this one.
+     */
+    public List<Integer> getResyncCharacters() {
+        Set<NfaState> startStates = constituentStates(initialState);
+        Set<NfaState> laterStates = new HashSet<>();
+        for (NfaState state : allStates) {
+            if (state.getNextState() != null) {
+                laterStates.addAll(constituentStates(state.getNextState().getCanonicalState()));
+            }
+        }
+        BitSet startChars = new BitSet(), laterChars = new BitSet();
+        for (NfaState state : allStates) {
+            if (state.isComposite()) continue;
+            BitSet chars = (startStates.contains(state) && !laterStates.contains(state)) ? startChars : laterChars;
+            List<Integer> ranges = state.getAsciiMoveRanges();
+            for (int i = 0; i < ranges.size(); i += 2) {
+                chars.set(ranges.get(i), Math.min(ranges.get(i+1), 127) + 1);
+            }
+        }
+        startChars.andNot(laterChars);
+        List<Integer> result = new ArrayList<>();
+        startChars.stream().forEach(result::add);
+        return result;
+    }
+
+    /**
+     * @return the states in this lexical state for which 
+     * the lexer uses a specialized scanning loop.
+     * @see NfaState#getIsSelfLoop()
+     */
+    public List<NfaState> getSelfLoopStates() {
+        List<NfaState> result = new ArrayList<>();
+        for (NfaState state : getAllNfaStates()) {
+            if (state.getIsSelfLoop()) {
+                result.add(state);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The NFA of this lexical state in a compact binary form, for a lexer
+     * template that emits the tables as a resource rather than as array
+     * literals. (See {@link LexerData#getTablesResource()}) All values are 
+     * big-endian ints, as written by java.io.DataOutputStream,
+     * except for the one-byte flags. The layout is:
+     * <pre>
+     *   stateCount
+     *   for each state, in index order:
+     *     flags (byte: 1 = composite)
+     *     if composite: count, then the indices of the constituent states
+     *     otherwise: next state index (-1 if none), 
+     *                ordinal of the token type of the next state (-1 if none),
+     *                number of ranges, then the left and right of each range
+     * </pre>
+     * The initial state is always at index 0.
+     */
+    public byte[] getTableData() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            Collection<NfaState> states = getAllNfaStates();
+            out.writeInt(states.size());
+            for (NfaState state : states) {
+                out.writeByte(state.isComposite() ? 1 : 0);
+                if (state.isComposite()) {
+                    List<NfaState> orderedStates = ((CompositeStateSet) state).getOrderedStates();
+                    out.writeInt(orderedStates.size());
+                    for (NfaState constituent : orderedStates) {
+                        out.writeInt(constituent.getIndex());
+                    }
+                    continue;
+                }
+                NfaState nextState = state.getNextState();
+                RegularExpression nextType = nextState == null ? null : nextState.getType();
+                out.writeInt(nextState == null ? -1 : state.getNextStateIndex());
+                out.writeInt(nextType == null ? -1 : nextType.getOrdinal());
+                List<Integer> ranges = state.getMoveRanges();
+                out.writeInt(ranges.size() / 2);
+                for (int range : ranges) {
+                    out.writeInt(range);
+                }
+            }
+        } catch (IOException ioe) {
+            // Can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(ioe);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Set<NfaState> constituentStates(NfaState state) {
+        if (state.isComposite()) {
+            return ((CompositeStateSet) state).states;
+        }
+        return Collections.singleton(state);
+    }
+
     public Collection<NfaState> getAllNfaStates() {
         List<NfaState> result = new ArrayList<>(allStates);
         Collections.sort(result, (first,second)->first.index-second.index);
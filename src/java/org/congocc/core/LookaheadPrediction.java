@@ -0,0 +1,746 @@
+/* Copyright (c) 2020-2022 Jonathan Revusky, revusky@congocc.org
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.congocc.core;
+
+import java.util.*;
+
+import org.congocc.parser.tree.*;
+
+/**
+ * A lookahead automaton for a choice point where at least one of the
+ * alternatives needs a scanahead routine. Starting from the next token,
+ * each state looks at one more token (up to {@link #MAX_DEPTH} of them)
+ * until it is certain which alternative the scanahead routines would pick,
+ * so the generated code can predict the alternative from the token types
+ * alone, without any backtracking.
+ * <p>
+ * The automaton is worked out by simulating, token by token, what the
+ * scanahead routines would do, including the way they resolve nested
+ * choices and loops (by trying them in order) and the way scan limits
+ * and the lookahead amount cut them short. That is only done where
+ * the result is fully determined by the token types: if an alternative
+ * involves semantic lookahead, lookbehind, code that is executed during
+ * lookahead, lexical state switches or token activation, the
+ * decision is left to the scanahead routines, as it is if the
+ * automaton would have to look further than {@link #MAX_DEPTH} tokens ahead.
+ * In all those cases {@link Expansion#getPrediction()} is simply null.
+ */
+public class LookaheadPrediction {
+
+    /**
+     * The maximum number of tokens the automaton looks at.
+     */
+    public static final int MAX_DEPTH = 4;
+
+    // Beyond these, we give up and let the scanahead routines do the work.
+    private static final int MAX_STATES = 1000;
+    private static final int MAX_NESTING = 200;
+    private static final int MAX_CONFIGURATIONS = 5000;
+
+    private final Expansion decision;
+    private final List<Expansion> alternatives;
+    private final Map<Integer, State> finalStates = new HashMap<>();
+    private final State startState;
+    private int stateCount;
+    private int depth;
+    // Set as soon as we find that the automaton cannot be worked out, after
+    // which everything just returns as quickly as possible.
+    private boolean undecidable;
+
+    private LookaheadPrediction(Expansion decision, List<Expansion> alternatives) {
+        this.decision = decision;
+        this.alternatives = alternatives;
+        Step[] steps = new Step[alternatives.size()];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = startStep(alternatives.get(i));
+        }
+        this.startState = undecidable ? null : buildState(steps, 0);
+    }
+
+    static LookaheadPrediction build(Expansion decision) {
+        List<Expansion> alternatives = getAlternatives(decision);
+        if (alternatives == null) return null;
+        boolean needsScanAhead = false;
+        for (Expansion alternative : alternatives) {
+            if (alternative.getRequiresPredicateMethod()) {
+                needsScanAhead = true;
+            }
+        }
+        if (!needsScanAhead) return null;
+        LookaheadPrediction prediction = new LookaheadPrediction(decision, alternatives);
+        return prediction.undecidable ? null : prediction;
+    }
+
+    // The alternatives in the order in which the generated code tries them.
+    // Anything after one that always succeeds is unreachable.
+    private static List<Expansion> getAlternatives(Expansion decision) {
+        List<Expansion> result = new ArrayList<>();
+        if (decision instanceof ExpansionChoice) {
+            for (Expansion choice : ((ExpansionChoice) decision).getChoices()) {
+                result.add(choice);
+                if (choice.isAlwaysSuccessful()) break;
+            }
+            return result;
+        }
+        if (decision instanceof ZeroOrOne || decision instanceof ZeroOrMore || decision instanceof OneOrMore) {
+            Expansion nested = decision.getNestedExpansion();
+            // If the nested expansion is a choice, that is where the decision is made.
+            if (nested == null || nested instanceof ExpansionChoice) return null;
+            result.add(nested);
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * @return the choice point (an ExpansionChoice, or a ZeroOrOne, ZeroOrMore or OneOrMore
+     * with a single nested expansion) that this automaton is for
+     */
+    public Expansion getDecision() {
+        return decision;
+    }
+
+    /**
+     * @return the alternatives that the states can predict, i.e. the choices
+     * of an ExpansionChoice or the nested expansion of a loop
+     */
+    public List<Expansion> getAlternatives() {
+        return Collections.unmodifiableList(alternatives);
+    }
+
+    public State getStartState() {
+        return startState;
+    }
+
+    /**
+     * @return the maximum number of tokens that the automaton looks at
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * A state of the automaton. A final state predicts an alternative (or that
+     * none applies). Any other state looks at the token after the ones that
+     * led to it and moves on to the next state accordingly.
+     */
+    public class State {
+        private final int alternative;
+        private final int tokenIndex;
+        private final Map<Integer, State> transitions = new TreeMap<>();
+        private State otherwise;
+
+        private State(int alternative, int tokenIndex) {
+            this.alternative = alternative;
+            this.tokenIndex = tokenIndex;
+        }
+
+        public boolean isFinal() {
+            return tokenIndex == 0;
+        }
+
+        /**
+         * @return the index of the predicted alternative, or -1 if no alternative
+         * applies. This is only meaningful for a final state.
+         */
+        public int getAlternative() {
+            return alternative;
+        }
+
+        /**
+         * @return the predicted alternative, or null if no alternative applies
+         */
+        public Expansion getPredictedExpansion() {
+            return alternative < 0 ? null : alternatives.get(alternative);
+        }
+
+        /**
+         * @return which token this state looks at, 1 being the next token,
+         * or 0 for a final state
+         */
+        public int getTokenIndex() {
+            return tokenIndex;
+        }
+
+        /**
+         * @return the states that this state moves on to, along with the types
+         * of the token that lead there. Token types not in any of these sets
+         * lead to {@link #getOtherwise()}.
+         */
+        public Map<State, TokenSet> getTransitions() {
+            Map<State, TokenSet> result = new LinkedHashMap<>();
+            for (Map.Entry<Integer, State> entry : transitions.entrySet()) {
+                result.computeIfAbsent(entry.getValue(), s -> new TokenSet(decision.getGrammar())).set(entry.getKey());
+            }
+            for (Map.Entry<State, TokenSet> entry : result.entrySet()) {
+                entry.setValue(decision.getAnalysis().intern(entry.getValue()));
+            }
+            return result;
+        }
+
+        /**
+         * @return the (final) state for a token type that has no transition of its own
+         */
+        public State getOtherwise() {
+            return otherwise;
+        }
+    }
+
+    // Working out the automaton, state by state. At each point we have, for each alternative,
+    // what its scanahead routine could still be doing after the tokens seen so far.
+    // The result is null if the automaton turns out to be undecidable.
+    private State buildState(Step[] steps, int tokensSeen) {
+        if (undecidable) return null;
+        int first = -1;
+        for (int i = 0; i < steps.length; i++) {
+            if (!steps[i].isDead()) {
+                first = i;
+                break;
+            }
+        }
+        if (first < 0) return finalState(-1);
+        if (steps[first].accepted) return finalState(first);
+        // The first alternative that could still succeed might not, so we have to look further.
+        if (tokensSeen == MAX_DEPTH || ++stateCount > MAX_STATES) {
+            undecidable = true;
+            return null;
+        }
+        depth = Math.max(depth, tokensSeen + 1);
+        State state = new State(-1, tokensSeen + 1);
+        state.otherwise = finalState(-1);
+        for (int i = first; i < steps.length; i++) {
+            if (steps[i].accepted || next(steps[i], OTHER_TOKEN).accepted) {
+                state.otherwise = finalState(i);
+                break;
+            }
+        }
+        Set<Integer> tokenTypes = new TreeSet<>();
+        for (Step step : steps) {
+            if (!step.accepted) {
+                step.collectTokenTypes(tokenTypes);
+            }
+        }
+        for (int tokenType : tokenTypes) {
+            Step[] nextSteps = new Step[steps.length];
+            for (int i = 0; i < steps.length; i++) {
+                nextSteps[i] = next(steps[i], tokenType);
+            }
+            State next = buildState(nextSteps, tokensSeen + 1);
+            if (undecidable) return null;
+            if (next != state.otherwise) {
+                state.transitions.put(tokenType, next);
+            }
+        }
+        return state;
+    }
+
+    private State finalState(int alternative) {
+        return finalStates.computeIfAbsent(alternative, alt -> new State(alt, 0));
+    }
+
+    // Where we start from for each alternative, following the logic of the
+    // condition that the generated code uses for it.
+    private Step startStep(Expansion alternative) {
+        Step step = new Step(false, false, 0);
+        if (alternative.isAlwaysSuccessful()) {
+            step.markAccepted();
+            return step;
+        }
+        if (alternative.getHasSemanticLookahead() || alternative.getHasLookBehind()) {
+            undecidable = true;
+            return step;
+        }
+        if (!alternative.getRequiresPredicateMethod()) {
+            TokenSet firstSet = alternative.getFirstSet();
+            if (firstSet.isEmpty() || alternative.getLookaheadAmount() == 0) {
+                step.markAccepted();
+            } else {
+                consume(firstSet, null, 0, Integer.MAX_VALUE, Collections.emptyList(), step);
+            }
+            return step;
+        }
+        if (alternative.getHasTokenActivation() || alternative.getSpecifiedLexicalState() != null
+                || alternative.getSpecifiesLexicalStateSwitch() || alternative.getHasGlobalSemanticActions()) {
+            undecidable = true;
+            return step;
+        }
+        Lookahead la = alternative.getLookahead();
+        if (la != null && la.getLHS() != null) {
+            undecidable = true;
+            return step;
+        }
+        Frame frames;
+        if (alternative.getHasSeparateSyntacticLookahead()) {
+            frames = new Frame(la, false, false, true, null);
+        } else if (alternative instanceof ExpansionSequence) {
+            // An explicit numerical lookahead means that a scan limit is ignored.
+            boolean scanToEnd = alternative.getHasExplicitNumericalLookahead();
+            frames = pushUnits((ExpansionSequence) alternative, true, scanToEnd, null);
+        } else {
+            frames = new Frame(alternative, false, true, alternative.getHasExplicitNumericalLookahead(), null);
+        }
+        int limit = alternative.getLookaheadAmount();
+        if (limit <= 0) {
+            step.markAccepted();
+        } else {
+            advance(frames, 0, limit, Collections.emptyList(), step, 0);
+        }
+        return step;
+    }
+
+    // Where a simulation (of an alternative, or of a guard) gets to on the given token type.
+    private Step next(Step step, int tokenType) {
+        Step result = new Step(step.required, step.leaky, step.scanned + 1);
+        if (step.accepted) {
+            result.markAccepted();
+            return result;
+        }
+        for (Configuration config : step.moves.getOrDefault(tokenType, Collections.emptySet())) {
+            advance(config.frames, config.consumed, config.limit, config.guards, result, 0);
+        }
+        for (Configuration config : step.pending) {
+            List<Step> guards = nextGuards(config.guards, tokenType);
+            if (guards != null) {
+                accept(config.consumed + 1, config.limit, guards, result);
+            }
+        }
+        return result;
+    }
+
+    // The guards after the given token type, or null if one of them has gone the wrong way.
+    private List<Step> nextGuards(List<Step> guards, int tokenType) {
+        if (guards.isEmpty()) return guards;
+        List<Step> result = new ArrayList<>();
+        for (Step guard : guards) {
+            Step next = next(guard, tokenType);
+            if (next.accepted) {
+                if (!guard.required) return null;
+            } else if (!next.isDead()) {
+                result.add(next);
+            } else if (guard.required) {
+                return null;
+            } else if (guard.leaky && guard.scanned > 0) {
+                undecidable = true;
+                return null;
+            }
+        }
+        return result;
+    }
+
+    // Follow the frames (what is still to be scanned) up to the point where a token
+    // is consumed, recording the result in the step. The limit is the number of tokens
+    // after which the scan routines stop scanning, which (as in the generated code) 
+    // happens as each routine gets to an expansion that checks it. The guards are the 
+    // simulations of the expansions that the scan routine must have failed to match 
+    // in order to get here.
+    private void advance(Frame frames, int consumed, int limit, List<Step> guards, Step step, int nesting) {
+        if (undecidable) return;
+        if (frames == null) {
+            accept(consumed, limit, guards, step);
+            return;
+        }
+        if (nesting > MAX_NESTING) {
+            // presumably left recursion
+            undecidable = true;
+            return;
+        }
+        Object element = frames.element;
+        Frame rest = frames.next;
+        boolean limitReached = consumed >= limit;
+        if (element == METHOD_END) {
+            advance(rest, consumed, limit, guards, step, nesting + 1);
+            return;
+        }
+        if (element == LIMIT_CHECK) {
+            advance(limitReached ? returnFrom(rest) : rest, consumed, limit, guards, step, nesting + 1);
+            return;
+        }
+        if (element instanceof Integer) {
+            // We have reached a scan limit.
+            advance(rest, consumed, consumed + (Integer) element, guards, step, nesting + 1);
+            return;
+        }
+        if (element instanceof TokenSet) {
+            consume((TokenSet) element, rest, consumed, limit, guards, step);
+            return;
+        }
+        if (element instanceof Lookahead) {
+            // A separate lookahead expansion, which is scanned by its own routine, 
+            // after which we carry on from the same point.
+            Lookahead la = (Lookahead) element;
+            Step guard = simulate(la.getNestedExpansion(), !la.isNegated(), false, frames.scanToEnd, consumed, limit, nesting);
+            if (guard.accepted || guard.isDead()) {
+                if (guard.accepted == guard.required) {
+                    advance(rest, consumed, limit, guards, step, nesting + 1);
+                }
+            } else {
+                List<Step> restGuards = new ArrayList<>(guards);
+                restGuards.add(guard);
+                advance(rest, consumed, limit, restGuards, step, nesting + 1);
+            }
+            return;
+        }
+        Expansion exp = (Expansion) element;
+        if (frames.repeated) {
+            if (limitReached) {
+                advance(rest, consumed, limit, guards, step, nesting + 1);
+            } else {
+                branch(exp, new Frame(exp, true, false, frames.scanToEnd, rest), rest, frames, consumed, limit, guards, step, nesting);
+            }
+            return;
+        }
+        // Only sequences (and plain parentheses) are scanned without checking the limit first.
+        boolean isParentheses = exp.getClass() == ExpansionWithParentheses.class;
+        if (limitReached && !isParentheses && !(exp instanceof ExpansionSequence)) {
+            advance(returnFrom(rest), consumed, limit, guards, step, nesting + 1);
+            return;
+        }
+        if (!isScannable(exp)) {
+            undecidable = true;
+            return;
+        }
+        if (isParentheses) {
+            Frame nested = new Frame(exp.getNestedExpansion(), false, frames.topLevel, frames.scanToEnd, rest);
+            advance(nested, consumed, limit, guards, step, nesting + 1);
+        } else if (exp.isSingleToken() || exp instanceof RegularExpression) {
+            consume(exp.getFirstSet(), rest, consumed, limit, guards, step);
+        } else if (exp instanceof ExpansionSequence) {
+            Frame units = pushUnits((ExpansionSequence) exp, frames.topLevel, frames.scanToEnd, rest);
+            advance(units, consumed, limit, guards, step, nesting + 1);
+        } else if (exp instanceof ExpansionChoice) {
+            // The scan routine takes the first choice that succeeds, so any choice
+            // is only taken if the ones before it fail.
+            List<Step> choiceGuards = guards;
+            for (Expansion choice : ((ExpansionChoice) exp).getChoices()) {
+                advance(checkFrames(choice, frames.scanToEnd, rest), consumed, limit, choiceGuards, step, nesting + 1);
+                Step guard = simulate(choice, false, false, frames.scanToEnd, consumed, limit, nesting);
+                if (guard.accepted) break;
+                if (!guard.isDead()) {
+                    choiceGuards = new ArrayList<>(choiceGuards);
+                    choiceGuards.add(guard);
+                }
+            }
+        } else if (exp instanceof ZeroOrOne) {
+            branch(exp.getNestedExpansion(), rest, rest, frames, consumed, limit, guards, step, nesting);
+        } else if (exp instanceof ZeroOrMore) {
+            Expansion nested = exp.getNestedExpansion();
+            branch(nested, new Frame(nested, true, false, frames.scanToEnd, rest), rest, frames, consumed, limit, guards, step, nesting);
+        } else if (exp instanceof OneOrMore) {
+            Expansion nested = exp.getNestedExpansion();
+            Frame loop = new Frame(nested, true, false, frames.scanToEnd, rest);
+            advance(checkFrames(nested, frames.scanToEnd, loop), consumed, limit, guards, step, nesting + 1);
+        } else if (exp instanceof NonTerminal) {
+            // A scan limit in the production applies unless we scan to the end of the NonTerminal.
+            NonTerminal nt = (NonTerminal) exp;
+            Frame methodEnd = new Frame(METHOD_END, false, frames.topLevel, frames.scanToEnd, rest);
+            Frame body = new Frame(nt.getProduction().getExpansion(), false, frames.topLevel, nt.getScanToEnd(), methodEnd);
+            advance(body, consumed, limit, guards, step, nesting + 1);
+        } else if (exp instanceof TryBlock || exp instanceof AttemptBlock) {
+            Frame nested = new Frame(exp.getNestedExpansion(), false, frames.topLevel, frames.scanToEnd, rest);
+            advance(nested, consumed, limit, guards, step, nesting + 1);
+        } else if (exp instanceof CodeBlock) {
+            advance(rest, consumed, limit, guards, step, nesting + 1);
+        } else {
+            // assertions, FAIL, UNCACHE_TOKENS...
+            undecidable = true;
+        }
+    }
+
+    // An optional (or repeated) expansion. The scan routine goes into it if 
+    // it can, so it only goes past it if matching it fails.
+    private void branch(Expansion body, Frame afterBody, Frame rest, Frame context, int consumed, int limit,
+                        List<Step> guards, Step step, int nesting)
+    {
+        if (body.isPossiblyEmpty()) {
+            undecidable = true;
+            return;
+        }
+        advance(checkFrames(body, context.scanToEnd, afterBody), consumed, limit, guards, step, nesting + 1);
+        // The tokens scanned in a failed attempt still count against 
+        // the lookahead amount, which we do not try to keep track of.
+        boolean leaky = limit != Integer.MAX_VALUE;
+        Step guard = simulate(body, false, leaky, context.scanToEnd, consumed, limit, nesting);
+        if (guard.accepted) return;
+        List<Step> restGuards = guards;
+        if (!guard.isDead()) {
+            restGuards = new ArrayList<>(guards);
+            restGuards.add(guard);
+        }
+        advance(rest, consumed, limit, restGuards, step, nesting + 1);
+    }
+
+    // The simulation of the scan routine for a nested expansion (or a lookahead
+    // expansion) on its own, to be used as a guard.
+    private Step simulate(Expansion exp, boolean required, boolean leaky, boolean scanToEnd, int consumed, int limit, int nesting) {
+        Step result = new Step(required, leaky, 0);
+        advance(checkFrames(exp, scanToEnd, null), consumed, limit, Collections.emptyList(), result, nesting + 1);
+        return result;
+    }
+
+    // A nested expansion (a choice or what is inside a loop) is checked by scanning
+    // a single token or else by calling its own scan routine. Note that 
+    // a scan limit never applies within that. The result is null if 
+    // the nested expansion turns out to be undecidable.
+    private Frame checkFrames(Expansion exp, boolean scanToEnd, Frame rest) {
+        if (exp.isSingleToken() && !exp.getRequiresPredicateMethod()) {
+            return new Frame(exp.getFirstSet(), false, false, scanToEnd, rest);
+        }
+        Frame frames = new Frame(exp, false, false, scanToEnd, new Frame(METHOD_END, false, false, scanToEnd, rest));
+        if (!exp.isInsideLookahead()) {
+            // The scan routine starts by checking any lookahead of the expansion.
+            Lookahead la = exp.getLookahead();
+            if (la != null && la.hasSemanticLookahead()
+                    && (la.isSemanticLookaheadNested() || exp.getContainingProduction().isOnlyForLookahead())) {
+                undecidable = true;
+                return null;
+            }
+            if (exp.getHasLookBehind()) {
+                undecidable = true;
+                return null;
+            }
+            if (exp.getHasSeparateSyntacticLookahead()) {
+                frames = new Frame(la, false, false, scanToEnd, frames);
+            }
+            frames = new Frame(LIMIT_CHECK, false, false, scanToEnd, frames);
+        }
+        return frames;
+    }
+
+    // Where we go on after returning early from the current scan routine
+    private static Frame returnFrom(Frame frames) {
+        while (frames != null && frames.element != METHOD_END) {
+            frames = frames.next;
+        }
+        return frames == null ? null : frames.next;
+    }
+
+    // The scan routine has matched everything it needs to, but that only counts
+    // if the guards go the right way.
+    private void accept(int consumed, int limit, List<Step> guards, Step step) {
+        if (guards.isEmpty()) {
+            step.markAccepted();
+        } else {
+            step.addPending(new Configuration(null, consumed, limit, guards));
+        }
+    }
+
+    private void consume(TokenSet tokenTypes, Frame rest, int consumed, int limit, List<Step> guards, Step step) {
+        for (int tokenType = tokenTypes.nextSetBit(0); tokenType >= 0; tokenType = tokenTypes.nextSetBit(tokenType + 1)) {
+            List<Step> nextGuards = nextGuards(guards, tokenType);
+            if (nextGuards != null) {
+                step.addMove(tokenType, new Configuration(rest, consumed + 1, limit, nextGuards));
+            }
+        }
+    }
+
+    // The units of a sequence, followed by the rest. A scan limit only 
+    // applies at the top level of the scan routine, and not if we scan to the end. 
+    private static Frame pushUnits(ExpansionSequence sequence, boolean topLevel, boolean scanToEnd, Frame rest) {
+        Frame frames = rest;
+        List<Expansion> units = sequence.getUnits();
+        for (int i = units.size() - 1; i >= 0; i--) {
+            Expansion unit = units.get(i);
+            if (unit.isScanLimit() && topLevel && !scanToEnd) {
+                frames = new Frame(unit.getScanLimitPlus(), false, topLevel, scanToEnd, frames);
+            }
+            frames = new Frame(unit, false, topLevel, scanToEnd, frames);
+        }
+        return frames;
+    }
+
+    private static boolean isScannable(Expansion exp) {
+        if (exp.getSpecifiedLexicalState() != null || exp.getSpecifiesLexicalStateSwitch() || exp.getHasTokenActivation()) {
+            return false;
+        }
+        if (exp instanceof CodeBlock && ((CodeBlock) exp).isAppliesInLookahead()) {
+            return false;
+        }
+        if (exp instanceof NonTerminal) {
+            BNFProduction production = ((NonTerminal) exp).getProduction();
+            if (production == null || production.isOnlyForLookahead()) {
+                return false;
+            }
+            CodeBlock javaCode = production.getJavaCode();
+            if (javaCode != null && javaCode.isAppliesInLookahead()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // What is still to be scanned, as an immutable stack. An element is an Expansion,
+    // a TokenSet (any one token from it), an Integer, which marks a scan limit and
+    // is the number of additional tokens to scan after it, or one of the
+    // markers for the scan routines. A repeated Expansion
+    // can be matched any number of times. Whether a scan limit applies depends on 
+    // the nesting of the scan routines and on the NonTerminal we are in.
+    private static final class Frame {
+        final Object element;
+        final boolean repeated, topLevel, scanToEnd;
+        final Frame next;
+        final int hash;
+
+        Frame(Object element, boolean repeated, boolean topLevel, boolean scanToEnd, Frame next) {
+            this.element = element;
+            this.repeated = repeated;
+            this.topLevel = topLevel;
+            this.scanToEnd = scanToEnd;
+            this.next = next;
+            int elementHash = element instanceof Integer ? element.hashCode() : System.identityHashCode(element);
+            this.hash = Objects.hash(elementHash, repeated, topLevel, scanToEnd, next);
+        }
+
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof Frame)) return false;
+            Frame other = (Frame) obj;
+            return hash == other.hash && (element == other.element || element instanceof Integer && element.equals(other.element))
+                   && repeated == other.repeated && topLevel == other.topLevel
+                   && scanToEnd == other.scanToEnd && Objects.equals(next, other.next);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Configuration {
+        final Frame frames;
+        final int consumed, limit;
+        final List<Step> guards;
+
+        Configuration(Frame frames, int consumed, int limit, List<Step> guards) {
+            this.frames = frames;
+            this.consumed = consumed;
+            this.limit = limit;
+            this.guards = guards;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Configuration)) return false;
+            Configuration other = (Configuration) obj;
+            return consumed == other.consumed && limit == other.limit
+                   && Objects.equals(frames, other.frames) && guards.equals(other.guards);
+        }
+
+        public int hashCode() {
+            return Objects.hash(frames, consumed, limit, guards);
+        }
+    }
+
+    // The state of a simulated scan routine: whether it has already succeeded
+    // and, if not, where it can get to on each token type. The pending configurations
+    // are the ones that are done, but still depend on how their guards turn out.
+    // A step is built up first and then, once it is complete, used as a guard,
+    // i.e. as part of a key in the hashed collections above. So, from the point
+    // where its hash code is first taken, it cannot be changed any more.
+    private final class Step {
+        // For a guard, whether it has to succeed (rather than fail), whether tokens
+        // scanned in a failed attempt are a problem, and how many tokens it has scanned so far
+        final boolean required, leaky;
+        final int scanned;
+        private boolean accepted;
+        private final Map<Integer, Set<Configuration>> moves = new HashMap<>();
+        private final Set<Configuration> pending = new LinkedHashSet<>();
+        private int size;
+        private boolean hashed;
+        private int hash;
+
+        Step(boolean required, boolean leaky, int scanned) {
+            this.required = required;
+            this.leaky = leaky;
+            this.scanned = scanned;
+        }
+
+        void markAccepted() {
+            checkNotHashed();
+            accepted = true;
+        }
+
+        void addMove(int tokenType, Configuration config) {
+            checkNotHashed();
+            if (moves.computeIfAbsent(tokenType, t -> new LinkedHashSet<>()).add(config)) {
+                checkSize();
+            }
+        }
+
+        void addPending(Configuration config) {
+            checkNotHashed();
+            if (pending.add(config)) {
+                checkSize();
+            }
+        }
+
+        private void checkSize() {
+            if (++size > MAX_CONFIGURATIONS) undecidable = true;
+        }
+
+        private void checkNotHashed() {
+            if (hashed) {
+                throw new IllegalStateException("A step cannot be changed once it is in use as a guard.");
+            }
+        }
+
+        boolean isDead() {
+            return !accepted && moves.isEmpty() && pending.isEmpty();
+        }
+
+        // All the token types that this (or a guard of a pending configuration) 
+        // treats differently from any other.
+        void collectTokenTypes(Set<Integer> tokenTypes) {
+            tokenTypes.addAll(moves.keySet());
+            for (Configuration config : pending) {
+                for (Step guard : config.guards) {
+                    guard.collectTokenTypes(tokenTypes);
+                }
+            }
+        }
+
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof Step)) return false;
+            Step other = (Step) obj;
+            return accepted == other.accepted && required == other.required
+                   && leaky == other.leaky && scanned == other.scanned
+                   && moves.equals(other.moves) && pending.equals(other.pending);
+        }
+
+        public int hashCode() {
+            if (!hashed) {
+                hash = Objects.hash(accepted, required, leaky, scanned, moves, pending);
+                hashed = true;
+            }
+            return hash;
+        }
+    }
+
+    // Markers for the end of a scan routine, and for where the scan routine returns 
+    // straight away if the lookahead amount is used up.
+    private static final Object METHOD_END = new Object(), LIMIT_CHECK = new Object();
+
+    // Stands for any token type that is not explicitly mentioned.
+    private static final int OTHER_TOKEN = -1;
+}
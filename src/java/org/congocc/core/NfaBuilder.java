@@ -23,7 +23,11 @@
 
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
 
 import org.congocc.Grammar;
 import org.congocc.parser.Node;
@@ -60,9 +64,13 @@ class NfaBuilder extends Node.Visitor {
         List<CharacterRange> ranges = orderedRanges(charList, ignoreCase);
         start = new NfaState(lexicalState);
         end = new NfaState(lexicalState);
+        start.setIgnoreCase(ignoreCase);
         for (CharacterRange cr : ranges) {
             start.addRange(cr.left, cr.right);
         }
+        if (!ignoreCase && ranges.size() >= MIN_RANGES_FOR_PREDICATE) {
+            start.setMovePredicate(matchingPredicate(ranges));
+        }
         start.setNextState(end);
     }
 
@@ -216,6 +224,106 @@ class NfaBuilder extends Node.Visitor {
         return result;
     }
 
+    /**
+     * The case-folded form of a character, as used by 
+     * {@link NfaState#getCaseFoldedMoveRanges()}. An upper case character 
+     * folds to its lower case form, but only if that is a round trip, 
+     * as with 'K' and 'k' but not the Kelvin sign and 'k'. Anything else
+     * folds to itself. 
+     */
+    static int caseFold(int ch) {
+        int lower = Character.toLowerCase(ch);
+        return lower != ch && Character.toUpperCase(lower) == ch ? lower : ch;
+    }
+
+    /**
+     * @return the characters that are not the same when case-folded.
+     * This is only worked out (once) the first time it is needed.
+     */
+    static BitSet caseFoldDiffSet() {
+        return CaseFoldDiffSetHolder.SET;
+    }
+
+    // The (lazy and thread-safe) holder class idiom
+    private static final class CaseFoldDiffSetHolder {
+        static final BitSet SET = new BitSet();
+        static {
+            for (int ch = 0; ch <= Character.MAX_CODE_POINT; ch++) {
+                if (caseFold(ch) != ch) {
+                    SET.set(ch);
+                }
+            }
+        }
+    }
+
+    // Below this many ranges, a character list is cheap enough
+    // to check directly, so we don't bother looking for a predicate.
+    static private final int MIN_RANGES_FOR_PREDICATE = 32;
+
+    static private final Map<String, IntPredicate> predicates = new LinkedHashMap<>();
+
+    static {
+        predicates.put("isJavaIdentifierStart", Character::isJavaIdentifierStart);
+        predicates.put("isJavaIdentifierPart", Character::isJavaIdentifierPart);
+        predicates.put("isUnicodeIdentifierStart", Character::isUnicodeIdentifierStart);
+        predicates.put("isUnicodeIdentifierPart", Character::isUnicodeIdentifierPart);
+        predicates.put("isLetter", Character::isLetter);
+        predicates.put("isLetterOrDigit", Character::isLetterOrDigit);
+        predicates.put("isAlphabetic", Character::isAlphabetic);
+        predicates.put("isDigit", Character::isDigit);
+        predicates.put("isIdeographic", Character::isIdeographic);
+    }
+
+    // The number of characters for which each of the above predicates holds,
+    // computed as needed. This is shared by all the grammars being
+    // processed, possibly on different threads, hence the concurrent map.
+    static private final Map<String, Integer> predicateCardinalities = new ConcurrentHashMap<>();
+
+    static private int predicateCardinality(String name) {
+        return predicateCardinalities.computeIfAbsent(name, n -> {
+            IntPredicate predicate = predicates.get(n);
+            int result = 0;
+            for (int ch = 0; ch <= Character.MAX_CODE_POINT; ch++) {
+                if (predicate.test(ch)) result++;
+            }
+            return result;
+        });
+    }
+
+    /**
+     * The java.specification.version of the JDK that the predicates were
+     * checked against. Each version of Java SE pins a version of the Unicode 
+     * standard, so the predicate is only equivalent to the move ranges when 
+     * the generated lexer runs on this same version.
+     */
+    static final String PREDICATE_JAVA_VERSION = System.getProperty("java.specification.version");
+
+    /**
+     * Checks whether a (long) list of ranges is exactly the set of
+     * characters for which one of the java.lang.Character predicates
+     * holds. This is typically the case for the identifier definitions 
+     * in the bundled includes, which were generated from the JDK. 
+     * Note that the check is against the Unicode version of the JDK that 
+     * CongoCC is running on (see {@link #PREDICATE_JAVA_VERSION}). If the ranges 
+     * were generated from an older (or newer) version, they will simply not match.
+     * This is only called for lists of at least MIN_RANGES_FOR_PREDICATE ranges, 
+     * and a predicate is first tested on the characters in the list, which rules 
+     * out most of them, so the whole code point range is only scanned (once) for 
+     * a predicate that could actually match.
+     * @return the name of the predicate, or null if there is none.
+     */
+    static private String matchingPredicate(List<CharacterRange> ranges) {
+        BitSet bs = rangeListToBS(ranges);
+        int cardinality = bs.cardinality();
+        for (Map.Entry<String, IntPredicate> entry : predicates.entrySet()) {
+            IntPredicate predicate = entry.getValue();
+            if (bs.stream().allMatch(predicate) && predicateCardinality(entry.getKey()) == cardinality) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
     // Convert a list of CharacterRange's to a BitSet
     static private BitSet rangeListToBS(List<CharacterRange> ranges) {
         BitSet result = new BitSet();
@@ -43,6 +43,14 @@ public class NfaState {
     // '$','$','A','Z','_','_',a','z'
     List<Integer> moveRanges = new ArrayList<>();
 
+    // Whether this state comes from an IGNORE_CASE regular expression,
+    // in which case the moveRanges include the upper and lower case variants
+    private boolean ignoreCase;
+
+    // The name of a java.lang.Character predicate that is equivalent
+    // to the moveRanges, if there is one.
+    private String movePredicate;
+
     NfaState(LexicalStateData lexicalState) {
         this.lexicalState = lexicalState;
         lexicalState.allStates.add(this);
@@ -69,6 +77,59 @@ public class NfaState {
 
     public List<Integer> getMoveRanges() { return moveRanges; }
 
+    void setIgnoreCase(boolean ignoreCase) {this.ignoreCase = ignoreCase;}
+
+    /**
+     * The move ranges of a state that comes from an IGNORE_CASE regular
+     * expression, expressed in terms of case-folded characters 
+     * (see {@link LexerData#getCaseFoldTable()}), so that the generated code 
+     * can fold the current character and then check a shorter list of ranges.
+     * The folded ranges accept exactly the same characters as 
+     * {@link #getMoveRanges()}. Where that is not possible, for instance 
+     * because the state accepts 'k' and 'K' but not the Kelvin sign, which 
+     * also folds to 'k', the result is null, as it is for a state that
+     * is not case-insensitive. This is only there for the templates; 
+     * nothing in the generator itself makes use of it.
+     */
+    public List<Integer> getCaseFoldedMoveRanges() {
+        if (!ignoreCase) return null;
+        BitSet caseFoldDiffSet = NfaBuilder.caseFoldDiffSet();
+        BitSet accepted = moveRangesToBS(moveRanges);
+        BitSet folded = (BitSet) accepted.clone();
+        folded.andNot(caseFoldDiffSet);
+        BitSet diffPoints = (BitSet) accepted.clone();
+        diffPoints.and(caseFoldDiffSet);
+        diffPoints.stream().forEach(ch -> folded.set(NfaBuilder.caseFold(ch)));
+        // Check that the characters that fold to something in the folded 
+        // ranges are exactly the ones that the state accepts.
+        BitSet unfolded = (BitSet) folded.clone();
+        unfolded.andNot(caseFoldDiffSet);
+        caseFoldDiffSet.stream().forEach(ch -> unfolded.set(ch, folded.get(NfaBuilder.caseFold(ch))));
+        if (!unfolded.equals(accepted)) return null;
+        List<Integer> result = new ArrayList<>();
+        for (int left = folded.nextSetBit(0); left >= 0; left = folded.nextSetBit(left)) {
+            int right = folded.nextClearBit(left);
+            result.add(left);
+            result.add(right - 1);
+            left = right;
+        }
+        return result;
+    }
+
+    /**
+     * @return the name of the java.lang.Character method
+     * (isJavaIdentifierStart, isLetter, and so on) that accepts exactly the 
+     * same characters as this state, or null if there is none. This only holds 
+     * for the Unicode version of the JDK that CongoCC runs on, so the move ranges
+     * remain what defines the state. The generated code should only call the 
+     * predicate, rather than checking what can be hundreds of ranges, if it is 
+     * running on the same version of Java. (See {@link LexerData#getPredicateJavaVersion()})
+     * Otherwise, it has to check the ranges.
+     */
+    public String getMovePredicate() {return movePredicate;}
+
+    void setMovePredicate(String movePredicate) {this.movePredicate = movePredicate;}
+
     public List<Integer> getAsciiMoveRanges() {
         List<Integer> result = new ArrayList<>();
         for (int i = 0; i<moveRanges.size(); i+=2) {
@@ -95,6 +156,48 @@ public class NfaState {
 
     }
 
+    /**
+     * @return whether this state treats all non-ASCII characters
+     * alike, i.e. it either accepts all of them or none of them.
+     * If that is the case for every state, the lexer can run directly
+     * over UTF-8 bytes.
+     */
+    public boolean isUniformOnNonAscii() {
+        for (int i = 0; i < moveRanges.size(); i += 2) {
+            int left = moveRanges.get(i);
+            int right = moveRanges.get(i+1);
+            if (right >= 128) {
+                return left <= 128 && right == 0x10FFFF;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The move ranges of this state expressed in terms of UTF-8 bytes.
+     * The ASCII ranges are unchanged. If the state accepts non-ASCII
+     * characters (all of them, see {@link #isUniformOnNonAscii()}),
+     * the range of UTF-8 lead bytes is added. (0xC0 and 0xC1 never occur in 
+     * well-formed UTF-8, so the range starts at 0xC2.) A lexer working on bytes 
+     * would consume the continuation bytes along with the lead byte, so that 
+     * a multi-byte sequence is only ever looked at as a whole.
+     */
+    public List<Integer> getByteMoveRanges() {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < moveRanges.size(); i += 2) {
+            int left = moveRanges.get(i);
+            int right = moveRanges.get(i+1);
+            if (left >= 128) break;
+            result.add(left);
+            result.add(Math.min(right, 127));
+        }
+        if (!moveRanges.isEmpty() && moveRanges.get(moveRanges.size()-1) >= 128) {
+            result.add(0xC2);
+            result.add(0xF4);
+        }
+        return result;
+    }
+
     public int getOrdinal() {
         assert !isComposite();
         return type == null ? Integer.MAX_VALUE : type.getOrdinal();
@@ -122,6 +225,57 @@ public class NfaState {
         return lexicalState.getCanonicalComposite(epsilonMoves);
     }
 
+    /**
+     * @return whether a move from this state just leads back to this same state,
+     * or to a composite of this state and the states that can end the run. 
+     * This is what repetitions of a single character class, such as a run of 
+     * whitespace or the body of a line or block comment, compile to. In the
+     * case of a block comment, "/*" (~["*"])* "*" ..., the move on ~["*"] 
+     * leads to a composite of this state and the one that accepts "*".
+     * When the lexer is in the loop state (see {@link #getLoopState()}),
+     * it can consume the whole run of characters that this state accepts
+     * and that the other states in the composite do not accept in a 
+     * tight loop rather than stepping through the NFA, with exactly the same result.
+     */
+    public boolean getIsSelfLoop() {
+        if (isComposite() || nextState == null) return false;
+        NfaState next = nextState.getCanonicalState();
+        return next == this || next.isComposite() && ((CompositeStateSet) next).states.contains(this);
+    }
+
+    /**
+     * @return the state the lexer is in while consuming a self-looping run, 
+     * either this state itself or a composite that contains it, 
+     * or null if this state is not a self loop.
+     */
+    public NfaState getLoopState() {
+        return getIsSelfLoop() ? nextState.getCanonicalState() : null;
+    }
+
+    /**
+     * @return the characters that end a self-looping run, if there
+     * are only a handful of them, as in ~["\n","\r"]. For a loop through a 
+     * composite, these include the characters that the other states in it 
+     * accept, such as the "*" that ends the body of a block comment. 
+     * The run can then be scanned for by looking for the next occurrence 
+     * of one of these characters. Otherwise, the result is null.
+     */
+    public List<Integer> getLoopTerminators() {
+        if (!getIsSelfLoop()) return null;
+        BitSet excluded = moveRangesToBS(moveRanges);
+        excluded.flip(0, 0x110000);
+        NfaState loopState = getLoopState();
+        if (loopState != this) {
+            for (NfaState state : ((CompositeStateSet) loopState).states) {
+                if (state != this) excluded.or(moveRangesToBS(state.moveRanges));
+            }
+        }
+        if (excluded.cardinality() > 4) return null;
+        List<Integer> result = new ArrayList<>();
+        excluded.stream().forEach(result::add);
+        return result;
+    }
+
     boolean isMoveCodeNeeded() {
         if (getCanonicalState().isComposite()) return false;
         if (nextState == null) return false;
@@ -143,6 +297,7 @@ public class NfaState {
 
     void setCharMove(int c, boolean ignoreCase) {
         moveRanges.clear();
+        this.ignoreCase = ignoreCase;
         if (!ignoreCase) {
             addRange(c, c);
         } else {//REVISIT, kinda messy
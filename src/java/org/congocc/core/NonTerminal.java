@@ -21,8 +21,6 @@
 
 package org.congocc.core;
 
-import java.util.Set;
-
 import org.congocc.parser.tree.*;
 
 public class NonTerminal extends Expansion {
@@ -31,11 +29,16 @@ public class NonTerminal extends Expansion {
     public Name getLHS() {return LHS;}
     public void setLHS(Name LHS) {this.LHS=LHS;}
 
+    private BNFProduction production;
+
     /**
      * The production this non-terminal corresponds to.
      */
     public BNFProduction getProduction() {
-        return getGrammar().getProductionByName(getName());
+        if (production == null) {
+            production = getGrammar().getProductionByName(getName());
+        }
+        return production;
     }
 
     public Expansion getNestedExpansion() {
@@ -71,46 +74,27 @@ public class NonTerminal extends Expansion {
     }
 
     public TokenSet getFirstSet() {
-        if (firstSet == null) {
-            firstSet = getProduction().getExpansion().getFirstSet();
-        }
-        return firstSet;
-     }
-     private int reEntries;     
+        return getAnalysis().getFirstSet(this);
+    }
+
      public TokenSet getFinalSet() {
-          ++reEntries;
-          TokenSet result = reEntries == 1 ? getProduction().getExpansion().getFinalSet() : new TokenSet(getGrammar());
-          --reEntries;
-          return result;
+         return getAnalysis().getFinalSet(this);
      }
      
      public boolean isPossiblyEmpty() {
-         return getProduction().isPossiblyEmpty();
+         return getAnalysis().isPossiblyEmpty(this);
      }
 
      public boolean isAlwaysSuccessful() {
          return getProduction().isAlwaysSuccessful();
      }
      
-     // REVISIT. Is this disposition really correct?
-     private boolean inMinimumSize, inMaximumSize;
-     
      public int getMinimumSize() {
-         if (inMinimumSize) return Integer.MAX_VALUE;
-         inMinimumSize = true;
-         int result = getProduction().getExpansion().getMinimumSize();
-         inMinimumSize = false;
-         return result;
+         return getAnalysis().getMinimumSize(this);
      }
 
      public int getMaximumSize() {
-         if (inMaximumSize) {
-             return Integer.MAX_VALUE;
-         }
-         inMaximumSize = true;
-         int result = getProduction().getExpansion().getMaximumSize(); 
-         inMaximumSize = false;
-         return result;
+         return getAnalysis().getMaximumSize(this);
      }
      
      public boolean getHasScanLimit() {
@@ -121,21 +105,15 @@ public class NonTerminal extends Expansion {
          return getProduction().getLexicalState() != null || getNestedExpansion().getSpecifiesLexicalStateSwitch();
      }
 
-     private boolean needsLeftRecursionCheck;
-
-     public boolean getNeedsLeftRecursionCheck() {return needsLeftRecursionCheck;}
-
-     public boolean potentiallyStartsWith(String productionName, Set<String> alreadyVisited) {
-         if (productionName.equals(getName())) {
-             needsLeftRecursionCheck = true;
-             return true;
-         }
-         if (alreadyVisited.contains(getName())) return false;
-         alreadyVisited.add(getName());
-         return getNestedExpansion().potentiallyStartsWith(productionName, alreadyVisited);
+     /**
+      * Is this a left-recursive call, i.e. one that can lead back
+      * to the production it is in without consuming any input?
+      */
+     public boolean getNeedsLeftRecursionCheck() {
+         return getGrammar().getProductionGraph().isLeftRecursiveCall(this);
      }
 
-     public boolean isSingleToken() {
-         return super.isSingleToken() && getProduction().getExpansion().isSingleToken();
+     boolean computeSingleToken() {
+         return super.computeSingleToken() && getProduction().getExpansion().isSingleToken();
      }
 }
\ No newline at end of file
@@ -0,0 +1,279 @@
+/* Copyright (c) 2020-2022 Jonathan Revusky, revusky@congocc.org
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.congocc.core;
+
+import java.util.*;
+
+import org.congocc.Grammar;
+import org.congocc.parser.tree.*;
+
+/**
+ * Which productions refer to which other productions, built once for the
+ * whole grammar. Besides the plain call graph, this keeps track of the
+ * calls in leading position, i.e. the ones that can happen before any
+ * token is consumed, and of the strongly connected components of both,
+ * so that questions like "is this production (left) recursive?"
+ * do not require re-walking the expansions.
+ * An instance of this is obtained via {@link Grammar#getProductionGraph()} and,
+ * like the {@link GrammarAnalysis}, is only valid as long as the grammar tree
+ * is not restructured.
+ */
+public class ProductionGraph {
+
+    private final List<BNFProduction> productions;
+
+    // Keyed by name, since a production can be redefined, in which case
+    // the NonTerminals all refer to the last definition.
+    private final Map<String, List<NonTerminal>> callers = new HashMap<>();
+    private final Map<BNFProduction, Set<BNFProduction>> callees = new IdentityHashMap<>();
+    private final Map<BNFProduction, Integer> components = new IdentityHashMap<>();
+    private final List<List<BNFProduction>> componentList = new ArrayList<>();
+
+    // The leading calls depend on which expansions can match the empty string,
+    // so they are only worked out when needed.
+    private Set<NonTerminal> leadingCalls;
+    private Map<BNFProduction, Set<BNFProduction>> leadingCallees;
+    private Map<BNFProduction, Integer> leadingComponents;
+
+    private Set<String> reachable;
+
+    public ProductionGraph(Grammar grammar) {
+        this.productions = grammar.descendants(BNFProduction.class);
+        for (BNFProduction production : productions) {
+            callers.put(production.getName(), new ArrayList<>());
+            callees.put(production, new LinkedHashSet<>());
+        }
+        for (NonTerminal nt : grammar.descendants(NonTerminal.class)) {
+            BNFProduction callee = nt.getProduction();
+            if (callee == null) continue;
+            callers.get(callee.getName()).add(nt);
+            BNFProduction caller = nt.getContainingProduction();
+            if (caller != null) {
+                callees.get(caller).add(callee);
+            }
+        }
+        computeComponents(callees, components, componentList);
+    }
+
+    /**
+     * @return the NonTerminals (anywhere in the grammar, including
+     * inside lookaheads) that refer to this production by name. If the 
+     * production is redefined (typically, in a grammar that includes 
+     * another one), the references to the name count for all the definitions.
+     */
+    public List<NonTerminal> getCallers(BNFProduction production) {
+        return callers.getOrDefault(production.getName(), Collections.emptyList());
+    }
+
+    /**
+     * @return the productions that this production refers to
+     */
+    public Set<BNFProduction> getCallees(BNFProduction production) {
+        return callees.getOrDefault(production, Collections.emptySet());
+    }
+
+    /**
+     * @return the productions that this production can start with, i.e. that
+     * it can refer to before consuming any token
+     */
+    public Set<BNFProduction> getLeadingCallees(BNFProduction production) {
+        ensureLeadingCalls();
+        return leadingCallees.getOrDefault(production, Collections.emptySet());
+    }
+
+    /**
+     * @return the strongly connected components of the call graph.
+     * A production only comes after all the productions it refers to,
+     * except for the ones in its own component.
+     */
+    public List<List<BNFProduction>> getComponents() {
+        return Collections.unmodifiableList(componentList);
+    }
+
+    /**
+     * Can this production end up calling itself?
+     */
+    public boolean isRecursive(BNFProduction production) {
+        return isInCycle(production, callees, components);
+    }
+
+    /**
+     * Is this a call from a production to one in the same strongly
+     * connected component, i.e. one that can lead back to where we are?
+     */
+    public boolean isRecursiveCall(NonTerminal nt) {
+        BNFProduction caller = nt.getContainingProduction();
+        BNFProduction callee = nt.getProduction();
+        return caller != null && callee != null
+               && components.get(caller).equals(components.get(callee));
+    }
+
+    /**
+     * Can this production end up calling itself before consuming any input?
+     */
+    public boolean isLeftRecursive(BNFProduction production) {
+        ensureLeadingCalls();
+        return isInCycle(production, leadingCallees, leadingComponents);
+    }
+
+    /**
+     * Is this a call, in leading position, that can lead back to
+     * the production it is in before consuming any input?
+     */
+    public boolean isLeftRecursiveCall(NonTerminal nt) {
+        ensureLeadingCalls();
+        if (!leadingCalls.contains(nt)) return false;
+        BNFProduction caller = nt.getContainingProduction();
+        BNFProduction callee = nt.getProduction();
+        return leadingComponents.get(caller).equals(leadingComponents.get(callee));
+    }
+
+    /**
+     * Can this production be reached from any non-private production?
+     * A private production that cannot is simply unused. As with
+     * {@link #getCallers(BNFProduction)}, this goes by name, so a 
+     * production that is redefined counts as reachable if its name is.
+     */
+    public boolean isReachable(BNFProduction production) {
+        if (reachable == null) {
+            reachable = new HashSet<>();
+            Set<BNFProduction> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<BNFProduction> stack = new ArrayDeque<>();
+            for (BNFProduction prod : productions) {
+                if (!prod.getAccessModifier().equals("private")) {
+                    stack.push(prod);
+                }
+            }
+            while (!stack.isEmpty()) {
+                BNFProduction prod = stack.pop();
+                if (visited.add(prod)) {
+                    reachable.add(prod.getName());
+                    stack.addAll(getCallees(prod));
+                }
+            }
+        }
+        return reachable.contains(production.getName());
+    }
+
+    private void ensureLeadingCalls() {
+        if (leadingCalls != null) return;
+        leadingCalls = Collections.newSetFromMap(new IdentityHashMap<>());
+        leadingCallees = new IdentityHashMap<>();
+        leadingComponents = new IdentityHashMap<>();
+        for (BNFProduction production : productions) {
+            Set<BNFProduction> targets = new LinkedHashSet<>();
+            if (production.getExpansion() != null) {
+                collectLeadingCalls(production.getExpansion(), targets);
+            }
+            leadingCallees.put(production, targets);
+        }
+        computeComponents(leadingCallees, leadingComponents, new ArrayList<>());
+    }
+
+    private void collectLeadingCalls(Expansion exp, Set<BNFProduction> targets) {
+        if (exp instanceof NonTerminal) {
+            NonTerminal nt = (NonTerminal) exp;
+            if (nt.getProduction() != null) {
+                leadingCalls.add(nt);
+                targets.add(nt.getProduction());
+            }
+        } else if (exp instanceof ExpansionSequence) {
+            for (Expansion unit : ((ExpansionSequence) exp).getUnits()) {
+                collectLeadingCalls(unit, targets);
+                if (!unit.isPossiblyEmpty()) break;
+            }
+        } else if (exp instanceof ExpansionChoice) {
+            for (Expansion choice : ((ExpansionChoice) exp).getChoices()) {
+                collectLeadingCalls(choice, targets);
+            }
+        } else if (!(exp instanceof RegularExpression)) {
+            Expansion nested = exp.getNestedExpansion();
+            if (nested == null) {
+                nested = exp.firstChildOfType(Expansion.class);
+            }
+            if (nested != null) {
+                collectLeadingCalls(nested, targets);
+            }
+        }
+    }
+
+    private static boolean isInCycle(BNFProduction production,
+                                     Map<BNFProduction, Set<BNFProduction>> edges,
+                                     Map<BNFProduction, Integer> componentMap)
+    {
+        Integer component = componentMap.get(production);
+        if (component == null) return false;
+        for (BNFProduction other : edges.get(production)) {
+            if (component.equals(componentMap.get(other))) return true;
+        }
+        return false;
+    }
+
+    // Tarjan's algorithm. The components are numbered (and added to the list)
+    // in reverse topological order, i.e. callees before callers.
+    private static void computeComponents(Map<BNFProduction, Set<BNFProduction>> edges,
+                                          Map<BNFProduction, Integer> componentMap,
+                                          List<List<BNFProduction>> componentList)
+    {
+        Map<BNFProduction, Integer> indices = new IdentityHashMap<>();
+        Map<BNFProduction, Integer> lowLinks = new IdentityHashMap<>();
+        Deque<BNFProduction> stack = new ArrayDeque<>();
+        for (BNFProduction production : edges.keySet()) {
+            if (!indices.containsKey(production)) {
+                strongConnect(production, edges, indices, lowLinks, stack, componentMap, componentList);
+            }
+        }
+    }
+
+    private static void strongConnect(BNFProduction production,
+                                      Map<BNFProduction, Set<BNFProduction>> edges,
+                                      Map<BNFProduction, Integer> indices,
+                                      Map<BNFProduction, Integer> lowLinks,
+                                      Deque<BNFProduction> stack,
+                                      Map<BNFProduction, Integer> componentMap,
+                                      List<List<BNFProduction>> componentList)
+    {
+        int index = indices.size();
+        indices.put(production, index);
+        lowLinks.put(production, index);
+        stack.push(production);
+        for (BNFProduction callee : edges.get(production)) {
+            if (!indices.containsKey(callee)) {
+                strongConnect(callee, edges, indices, lowLinks, stack, componentMap, componentList);
+                lowLinks.put(production, Math.min(lowLinks.get(production), lowLinks.get(callee)));
+            } else if (!componentMap.containsKey(callee)) {
+                // still on the stack
+                lowLinks.put(production, Math.min(lowLinks.get(production), indices.get(callee)));
+            }
+        }
+        if (lowLinks.get(production) == index) {
+            List<BNFProduction> component = new ArrayList<>();
+            BNFProduction member;
+            do {
+                member = stack.pop();
+                componentMap.put(member, componentList.size());
+                component.add(member);
+            } while (member != production);
+            componentList.add(component);
+        }
+    }
+}
@@ -166,11 +166,7 @@ public abstract class RegularExpression extends Expansion {
     
     
     public TokenSet getFirstSet() {
-    	if (firstSet== null) {
-    		firstSet = new TokenSet(getGrammar());
-    		firstSet.set(getOrdinal());
-    	}
-        return firstSet;
+        return getAnalysis().getFirstSet(this);
     }
     
     public TokenSet getFinalSet() {
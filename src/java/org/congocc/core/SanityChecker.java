@@ -117,6 +117,10 @@ public class SanityChecker {
             if (prod.isLeftRecursive()) {
                 grammar.addWarning(prod, "Production " + prod.getName() + " is left recursive.");
             }
+
+            if (!grammar.getProductionGraph().isReachable(prod)) {
+                grammar.addWarning(prod, "Private production " + prod.getName() + " is not used by any other production.");
+            }
         }
 
         for (Expansion exp : grammar.descendants(Expansion.class)) {
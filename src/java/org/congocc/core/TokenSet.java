@@ -29,6 +29,12 @@ import org.congocc.Grammar;
  * A class to represent a set of Token types.
  * Will probably eventually move this into the Token.java.ftl as 
  * something available to all generated parsers.
+ * The sets that come out of the {@link GrammarAnalysis} are frozen, i.e. 
+ * immutable, and interned, so that there is only one instance for each 
+ * distinct set. Since the templates query these over and over, the 
+ * derived views (the long array, the token names...) of a frozen set
+ * are computed the first time they are asked for and then kept.
+ * Equality is still by content, as for any BitSet.
  */
 
 public class TokenSet extends BitSet {
@@ -39,6 +45,13 @@ public class TokenSet extends BitSet {
 
 	private boolean incomplete;
 
+	private boolean frozen;
+
+	private int hash;
+	private long[] longArray;
+	private List<String> tokenNames;
+	private String commaDelimitedTokens;
+
 	public TokenSet(Grammar grammar) {
 		this.grammar = grammar;
 	}
@@ -48,15 +61,68 @@ public class TokenSet extends BitSet {
 		this.incomplete = incomplete;
 	}
 
+	/**
+	 * Make this set immutable. Any attempt to modify it 
+	 * after this throws an UnsupportedOperationException.
+	 * @return this set
+	 */
+	public TokenSet freeze() {
+		if (!frozen) {
+			hash = super.hashCode();
+			frozen = true;
+		}
+		return this;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * @return the instance in the table that is equal to this set, adding 
+	 * this set (frozen) to the table if there is none yet. 
+	 */
+	TokenSet intern(Map<TokenSet, TokenSet> table) {
+		TokenSet existing = table.get(this);
+		if (existing != null) {
+			return existing;
+		}
+		freeze();
+		table.put(this, this);
+		return this;
+	}
+
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new UnsupportedOperationException("This token set cannot be modified.");
+		}
+	}
+
 	public boolean isIncomplete() {
 		return incomplete;
 	}
 
 	public void setIncomplete(boolean incomplete) {
+		checkNotFrozen();
 		this.incomplete = incomplete;
 	}
 	
+	/**
+	 * @return the set as an array of longs, with enough elements for all
+	 * the token types. 
+	 */
 	public long[] toLongArray() {
+		if (!frozen) {
+			return computeLongArray();
+		}
+		if (longArray == null) {
+			longArray = computeLongArray();
+		}
+		// A copy, so that a frozen set can't be modified through it
+		return longArray.clone();
+	}
+
+	private long[] computeLongArray() {
 	    long[] ll = super.toLongArray();
 	    int numKinds = grammar.getLexerData().getTokenCount();
 	    if (ll.length < 1+numKinds/64) {
@@ -66,6 +132,16 @@ public class TokenSet extends BitSet {
 	}
 	
 	public List<String> getTokenNames() {
+		if (!frozen) {
+			return computeTokenNames();
+		}
+		if (tokenNames == null) {
+			tokenNames = Collections.unmodifiableList(computeTokenNames());
+		}
+		return tokenNames;
+	}
+
+	private List<String> computeTokenNames() {
 		List<String> names = new ArrayList<>();
 		int tokCount = grammar.getLexerData().getTokenCount();
 		for (int i = 0; i<tokCount; i++) {
@@ -77,6 +153,10 @@ public class TokenSet extends BitSet {
 	}
 	
 	public String getFirstTokenName() {
+		if (frozen) {
+			List<String> names = getTokenNames();
+			return names.isEmpty() ? null : names.get(0);
+		}
 		int tokCount = grammar.getLexerData().getTokenCount();
 		for (int i=0; i<tokCount; i++) {
 			if (get(i)) {
@@ -88,17 +168,20 @@ public class TokenSet extends BitSet {
 
 
     public List<String> getTokenSetNames() {
-        int tokenCount = grammar.getLexerData().getTokenCount();
-        List<String> result = new ArrayList<>(tokenCount);
-        for (int i=0; i<tokenCount; i++) {
-            if (get(i)) {
-                result.add(grammar.getLexerData().getTokenName(i));
-            }
-        }
-        return result;
+        return getTokenNames();
     }
  	
 	public String getCommaDelimitedTokens() {
+		if (!frozen) {
+			return computeCommaDelimitedTokens();
+		}
+		if (commaDelimitedTokens == null) {
+			commaDelimitedTokens = computeCommaDelimitedTokens();
+		}
+		return commaDelimitedTokens;
+	}
+
+	private String computeCommaDelimitedTokens() {
 		if (cardinality() <=1) {
 			return getFirstTokenName();
 		}
@@ -111,7 +194,138 @@ public class TokenSet extends BitSet {
 		return result.toString();
 	}
 
+	/**
+	 * @return whether the tokens in this (non-empty) set have consecutive 
+	 * ordinals, so that membership can be tested with a range check
+	 */
+	public boolean getIsContiguous() {
+		return !isEmpty() && cardinality() == getLastOrdinal() - getFirstOrdinal() + 1;
+	}
+
+	/**
+	 * @return the lowest ordinal in this set, or -1 if it is empty
+	 */
+	public int getFirstOrdinal() {
+		return nextSetBit(0);
+	}
+
+	/**
+	 * @return the highest ordinal in this set, or -1 if it is empty
+	 */
+	public int getLastOrdinal() {
+		return length() - 1;
+	}
+
 	public void not() {
 		flip(0, grammar.getLexerData().getTokenCount());
 	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (frozen && obj instanceof TokenSet && ((TokenSet) obj).frozen && ((TokenSet) obj).hash != hash) {
+			return false;
+		}
+		return super.equals(obj);
+	}
+
+	@Override
+	public int hashCode() {
+		return frozen ? hash : super.hashCode();
+	}
+
+	/**
+	 * @return a copy of this set, which is not frozen, even if this one is.
+	 */
+	@Override
+	public Object clone() {
+		TokenSet result = (TokenSet) super.clone();
+		result.frozen = false;
+		result.longArray = null;
+		result.tokenNames = null;
+		result.commaDelimitedTokens = null;
+		return result;
+	}
+
+	// The mutators of BitSet, all of which are off-limits once the set is frozen.
+
+	@Override
+	public void set(int bitIndex) {
+		checkNotFrozen();
+		super.set(bitIndex);
+	}
+
+	@Override
+	public void set(int bitIndex, boolean value) {
+		checkNotFrozen();
+		super.set(bitIndex, value);
+	}
+
+	@Override
+	public void set(int fromIndex, int toIndex) {
+		checkNotFrozen();
+		super.set(fromIndex, toIndex);
+	}
+
+	@Override
+	public void set(int fromIndex, int toIndex, boolean value) {
+		checkNotFrozen();
+		super.set(fromIndex, toIndex, value);
+	}
+
+	@Override
+	public void clear(int bitIndex) {
+		checkNotFrozen();
+		super.clear(bitIndex);
+	}
+
+	@Override
+	public void clear(int fromIndex, int toIndex) {
+		checkNotFrozen();
+		super.clear(fromIndex, toIndex);
+	}
+
+	@Override
+	public void clear() {
+		checkNotFrozen();
+		super.clear();
+	}
+
+	@Override
+	public void flip(int bitIndex) {
+		checkNotFrozen();
+		super.flip(bitIndex);
+	}
+
+	@Override
+	public void flip(int fromIndex, int toIndex) {
+		checkNotFrozen();
+		super.flip(fromIndex, toIndex);
+	}
+
+	@Override
+	public void and(BitSet set) {
+		checkNotFrozen();
+		super.and(set);
+	}
+
+	@Override
+	public void or(BitSet set) {
+		checkNotFrozen();
+		super.or(set);
+	}
+
+	@Override
+	public void xor(BitSet set) {
+		checkNotFrozen();
+		super.xor(set);
+	}
+
+	@Override
+	public void andNot(BitSet set) {
+		checkNotFrozen();
+		super.andNot(set);
+	}
 }